@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.client;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import labs.pm.data.Product;
+import labs.pm.service.ProductManager;
+import labs.pm.service.ReportTiming;
+
+/**
+ * Time to print the reports of every product in the catalogue the
+ * product manager is configured with, one call at a time and through the
+ * batch API. Each way reports for its own client so
+ * neither finds the reports of the other. The batch then runs again so
+ * later rounds show what the report cache saves once reports are warm.
+ * <p>
+ * Arguments: comma separated languages (en-GB), batch rounds (3). More
+ * than one language needs a report.file pattern with {2}.
+ *
+ * @author fabio
+ */
+public class ReportsBenchmark {
+
+    public static void main(String[] args) {
+        List<String> languages = List.of(((args.length > 0) ? args[0] : "en-GB").split(","));
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        ProductManager pm = ServiceLoader.load(ProductManager.class).findFirst().get();
+        List<Integer> ids = pm.findProducts(product -> true, Comparator.comparingInt(Product::getId), 0, Integer.MAX_VALUE, "en-GB")
+                .getProducts().stream()
+                .map(Product::getId)
+                .collect(Collectors.toList());
+        int reports = ids.size() * languages.size();
+
+        long start = System.nanoTime();
+        for (int id : ids) {
+            for (String language : languages) {
+                pm.printProductReport(id, language, "single");
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.printf("one at a time: %,d reports in %d ms%n", reports, nanos / 1_000_000);
+
+        for (int round = 1; round <= rounds; round++) {
+            start = System.nanoTime();
+            List<ReportTiming> timings = pm.printProductReports(ids, languages, List.of("batch")).stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+            nanos = System.nanoTime() - start;
+            long written = timings.stream().filter(ReportTiming::isWritten).count();
+            System.out.printf("batch round %d: %,d reports in %d ms, %,d written, %,d skipped, longest wait %d ms, longest report %d ms%n",
+                    round, timings.size(), nanos / 1_000_000, written, timings.size() - written,
+                    timings.stream().mapToLong(timing -> timing.getWaited().toMillis()).max().orElse(0),
+                    timings.stream().mapToLong(timing -> timing.getElapsed().toMillis()).max().orElse(0));
+        }
+        pm.getMetrics().entrySet().stream()
+                .filter(metric -> metric.getKey().startsWith("reports.cache."))
+                .forEach(metric -> System.out.println(metric.getKey() + " = " + metric.getValue()));
+    }
+}
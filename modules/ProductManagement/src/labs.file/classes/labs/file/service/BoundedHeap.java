@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the first k of the items it is given in some order, in
+ * O(log k) per item, and counts all the items.
+ *
+ * Not thread safe, feed it from a sequential stream.
+ *
+ * @author fabio
+ * @param <T> the type of the items
+ */
+class BoundedHeap<T> implements Consumer<T> {
+
+    private final Comparator<? super T> order;
+    private final int capacity;
+    private final PriorityQueue<T> heap;
+    private int count;
+
+    /**
+     * @param order the order of the items to keep
+     * @param capacity how many items to keep
+     */
+    BoundedHeap(Comparator<? super T> order, int capacity) {
+        this.order = order;
+        this.capacity = capacity;
+        // the head of the queue is the last item kept, the first to go
+        this.heap = new PriorityQueue<>(Math.min(capacity, 1024) + 1, order.reversed());
+    }
+
+    @Override
+    public void accept(T item) {
+        count++;
+        if (heap.size() < capacity) {
+            heap.add(item);
+        } else if (capacity > 0 && order.compare(item, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(item);
+        }
+    }
+
+    /**
+     * Get how many items were given, kept or not
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the items kept, in order
+     */
+    List<T> toList() {
+        List<T> items = new ArrayList<>(heap);
+        items.sort(order);
+        return items;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.Arrays;
+
+/**
+ * Immutable product ids split into a few buckets by a small key such as
+ * the rating, each bucket sorted by id.
+ *
+ * Changing an index copies only the buckets that change, so moving a
+ * product to another rating copies two small arrays.
+ *
+ * @author fabio
+ */
+final class BucketIndex {
+
+    private final int[][] buckets;
+
+    private BucketIndex(int[][] buckets) {
+        this.buckets = buckets;
+    }
+
+    static BucketIndex empty(int bucketCount) {
+        int[][] buckets = new int[bucketCount][];
+        Arrays.fill(buckets, new int[0]);
+        return new BucketIndex(buckets);
+    }
+
+    /**
+     * Split the first pairs of two arrays into buckets
+     */
+    static BucketIndex of(long[] keys, int[] ids, int size, int bucketCount) {
+        int[] sizes = new int[bucketCount];
+        for (int i = 0; i < size; i++) {
+            sizes[(int) keys[i]]++;
+        }
+        int[][] buckets = new int[bucketCount][];
+        for (int b = 0; b < bucketCount; b++) {
+            buckets[b] = new int[sizes[b]];
+            sizes[b] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            int b = (int) keys[i];
+            buckets[b][sizes[b]++] = ids[i];
+        }
+        for (int[] bucket : buckets) {
+            Arrays.sort(bucket);
+        }
+        return new BucketIndex(buckets);
+    }
+
+    int getBuckets() {
+        return buckets.length;
+    }
+
+    /**
+     * Get the ids of a bucket, which must not be changed
+     */
+    int[] ids(int bucket) {
+        return buckets[bucket];
+    }
+
+    BucketIndex with(int bucket, int id) {
+        int[] ids = buckets[bucket];
+        int at = Arrays.binarySearch(ids, id);
+        if (at >= 0) {
+            return this;
+        }
+        at = -at - 1;
+        int[] changed = new int[ids.length + 1];
+        System.arraycopy(ids, 0, changed, 0, at);
+        changed[at] = id;
+        System.arraycopy(ids, at, changed, at + 1, ids.length - at);
+        return withBucket(bucket, changed);
+    }
+
+    BucketIndex without(int bucket, int id) {
+        int[] ids = buckets[bucket];
+        int at = Arrays.binarySearch(ids, id);
+        if (at < 0) {
+            return this;
+        }
+        int[] changed = new int[ids.length - 1];
+        System.arraycopy(ids, 0, changed, 0, at);
+        System.arraycopy(ids, at + 1, changed, at, changed.length - at);
+        return withBucket(bucket, changed);
+    }
+
+    private BucketIndex withBucket(int bucket, int[] ids) {
+        int[][] copy = buckets.clone();
+        copy[bucket] = ids;
+        return new BucketIndex(copy);
+    }
+
+    /**
+     * Rough heap footprint of the arrays
+     */
+    long estimateBytes() {
+        long bytes = 16 + 4L * buckets.length;
+        for (int[] bucket : buckets) {
+            bytes += 16 + 4L * bucket.length;
+        }
+        return bytes;
+    }
+
+}
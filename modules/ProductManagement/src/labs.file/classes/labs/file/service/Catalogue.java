@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Versioned, copy on write product catalogue.
+ *
+ * Writers lock the stripe of the product, copy the part of the stripe
+ * holding it (see {@link CatalogueStripe}), change the copy and publish
+ * a new {@link CatalogueVersion} through a single atomic reference, so
+ * writes to different stripes still run in parallel. Readers never lock,
+ * they pin the current version with {@link #snapshot()}. A catalogue with
+ * a single stripe serializes all writers like one global lock.
+ *
+ * The {@link SecondaryIndexes} and {@link ProductColumns} of a stripe
+ * change with it and are published in the same version, so an index
+ * never points to a product the version does not have and a discount sum
+ * never mixes two versions.
+ *
+ * @author fabio
+ */
+class Catalogue {
+
+    private final Lock[] locks;
+    private final AtomicReference<CatalogueVersion> current;
+
+    Catalogue(int stripeCount) {
+        int count = 1;
+        while (count < stripeCount) {
+            count <<= 1;
+        }
+        locks = new Lock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        CatalogueStripe[] stripes = new CatalogueStripe[count];
+        Arrays.fill(stripes, CatalogueStripe.empty(CatalogueVersion.stripeBits(count)));
+        current = new AtomicReference<>(new CatalogueVersion(0, stripes, 0));
+    }
+
+    CatalogueVersion snapshot() {
+        return current.get();
+    }
+
+    Lock writeLock(int id) {
+        return locks[current.get().stripe(id)];
+    }
+
+    /**
+     * Caller must hold the write lock of the id
+     */
+    ProductEntry put(int id, ProductEntry entry) {
+        CatalogueVersion version = current.get();
+        int stripe = version.stripe(id);
+        CatalogueStripe entries = version.getStripe(stripe);
+        ProductEntry previous = entries.get(id);
+        publish(stripe, entries.with(id, previous, entry));
+        return previous;
+    }
+
+    /**
+     * Caller must hold the write lock of the id
+     */
+    ProductEntry putIfAbsent(int id, ProductEntry entry) {
+        ProductEntry previous = current.get().get(id);
+        return (previous == null) ? put(id, entry) : previous;
+    }
+
+    /**
+     * Replace the whole catalogue, holding every stripe lock so no write
+     * is lost in between
+     */
+    void replace(Stream<ProductEntry> entries) {
+        lockAll();
+        try {
+            CatalogueVersion version = current.get();
+            List<List<ProductEntry>> grouped = new ArrayList<>(locks.length);
+            for (int i = 0; i < locks.length; i++) {
+                grouped.add(new ArrayList<>());
+            }
+            entries.forEach(entry -> grouped.get(version.stripe(entry.getProduct().getId())).add(entry));
+            int stripeBits = CatalogueVersion.stripeBits(locks.length);
+            CatalogueStripe[] stripes = new CatalogueStripe[locks.length];
+            Arrays.parallelSetAll(stripes, i -> CatalogueStripe.of(stripeBits, grouped.get(i)));
+            current.set(new CatalogueVersion(version.getVersion() + 1, stripes, version.getColumnChanges() + 1));
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Block every writer, used to line up a snapshot with the write ahead
+     * log. Writers already holding a stripe lock finish first.
+     */
+    void lockAll() {
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    private void publish(int stripe, CatalogueStripe entries) {
+        // writers of other stripes may publish concurrently, but nobody
+        // else touches this stripe, so only the version needs retrying
+        CatalogueVersion version;
+        do {
+            version = current.get();
+        } while (!current.compareAndSet(version, version.withStripe(stripe, entries)));
+    }
+
+}
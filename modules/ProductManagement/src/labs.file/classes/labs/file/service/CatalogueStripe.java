@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+
+/**
+ * Immutable entries of one catalogue stripe, split into parts of at most
+ * {@link #MAX_PART} entries each with its own {@link SecondaryIndexes}
+ * and {@link ProductColumns}.
+ *
+ * A write copies only the part of the product and the small arrays of
+ * parts, so its cost does not grow with the catalogue. When a part fills
+ * up the stripe is split again into twice as many parts, which costs as
+ * much as all the writes since the last split together.
+ *
+ * @author fabio
+ */
+final class CatalogueStripe {
+
+    static final int MAX_PART = 1024;
+
+    private final int stripeBits;
+    private final int partBits;
+    private final ProductIndex<ProductEntry>[] parts;
+    private final SecondaryIndexes[] indexes;
+    private final ProductColumns[] columns;
+    private final int size;
+    private final long columnChanges;
+
+    private CatalogueStripe(int stripeBits, int partBits, ProductIndex<ProductEntry>[] parts, SecondaryIndexes[] indexes,
+            ProductColumns[] columns, int size, long columnChanges) {
+        this.stripeBits = stripeBits;
+        this.partBits = partBits;
+        this.parts = parts;
+        this.indexes = indexes;
+        this.columns = columns;
+        this.size = size;
+        this.columnChanges = columnChanges;
+    }
+
+    /**
+     * @param stripeBits how many of the leading id hash bits choose the
+     * stripe, the next ones choose the part
+     */
+    static CatalogueStripe empty(int stripeBits) {
+        return of(stripeBits, List.of());
+    }
+
+    static CatalogueStripe of(int stripeBits, List<ProductEntry> entries) {
+        int partBits = 0;
+        while ((MAX_PART / 2 << partBits) < entries.size() && stripeBits + partBits < 24) {
+            partBits++;
+        }
+        return of(stripeBits, partBits, entries, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CatalogueStripe of(int stripeBits, int partBits, List<ProductEntry> entries, long columnChanges) {
+        ProductIndex<ProductEntry>[] parts = (ProductIndex<ProductEntry>[]) new ProductIndex<?>[1 << partBits];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new ProductIndex<>();
+        }
+        for (ProductEntry entry : entries) {
+            int id = entry.getProduct().getId();
+            parts[part(stripeBits, partBits, id)].put(id, entry);
+        }
+        SecondaryIndexes[] indexes = new SecondaryIndexes[parts.length];
+        ProductColumns[] columns = new ProductColumns[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            List<Product> products = parts[i].values().map(ProductEntry::getProduct).collect(Collectors.toList());
+            indexes[i] = products.isEmpty() ? SecondaryIndexes.EMPTY : SecondaryIndexes.of(products);
+            columns[i] = products.isEmpty() ? ProductColumns.EMPTY : ProductColumns.of(products);
+        }
+        return new CatalogueStripe(stripeBits, partBits, parts, indexes, columns, entries.size(), columnChanges);
+    }
+
+    private static int part(int stripeBits, int partBits, int id) {
+        return (partBits == 0) ? 0 : ((id * 0x9E3779B9) << stripeBits) >>> (32 - partBits);
+    }
+
+    ProductEntry get(int id) {
+        return parts[part(stripeBits, partBits, id)].get(id);
+    }
+
+    /**
+     * Get a stripe with an entry added or replaced
+     *
+     * @param previous the entry the id has in this stripe, null if none
+     */
+    CatalogueStripe with(int id, ProductEntry previous, ProductEntry entry) {
+        int part = part(stripeBits, partBits, id);
+        ProductIndex<ProductEntry> changed = parts[part].copy();
+        changed.put(id, entry);
+        int changedSize = (previous == null) ? size + 1 : size;
+        if (changed.size() > MAX_PART && stripeBits + partBits < 24) {
+            return of(stripeBits, partBits + 1,
+                    Stream.concat(values().filter(e -> e.getProduct().getId() != id), Stream.of(entry))
+                            .collect(Collectors.toList()), columnChanges + 1);
+        }
+        ProductIndex<ProductEntry>[] partsCopy = parts.clone();
+        partsCopy[part] = changed;
+        SecondaryIndexes[] indexesCopy = indexes.clone();
+        indexesCopy[part] = indexes[part].with((previous == null) ? null : previous.getProduct(), entry.getProduct());
+        ProductColumns partColumns = columns[part].with(entry.getProduct());
+        if (partColumns == columns[part]) {
+            return new CatalogueStripe(stripeBits, partBits, partsCopy, indexesCopy, columns, changedSize, columnChanges);
+        }
+        ProductColumns[] columnsCopy = columns.clone();
+        columnsCopy[part] = partColumns;
+        return new CatalogueStripe(stripeBits, partBits, partsCopy, indexesCopy, columnsCopy, changedSize, columnChanges + 1);
+    }
+
+    Stream<ProductEntry> values() {
+        return Arrays.stream(parts).flatMap(ProductIndex::values);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getParts() {
+        return parts.length;
+    }
+
+    /**
+     * Get the number of changes to the column values of this stripe so
+     * far, a review that leaves the rating as it was changes nothing
+     */
+    long getColumnChanges() {
+        return columnChanges;
+    }
+
+    /**
+     * @see ProductColumns#addDiscounts
+     */
+    void addDiscounts(long day, boolean happyHour, long[] sums, int[] counts) {
+        for (ProductColumns partColumns : columns) {
+            partColumns.addDiscounts(day, happyHour, sums, counts);
+        }
+    }
+
+    /**
+     * Visit the entries whose key is between two values, both included,
+     * part after part
+     */
+    void forEach(IndexKey key, long from, long to, Consumer<ProductEntry> action) {
+        for (int i = 0; i < parts.length; i++) {
+            ProductIndex<ProductEntry> entries = parts[i];
+            indexes[i].forEach(key, from, to, id -> action.accept(entries.get(id)));
+        }
+    }
+
+    int count(IndexKey key, long from, long to) {
+        return Arrays.stream(indexes).mapToInt(partIndexes -> partIndexes.count(key, from, to)).sum();
+    }
+
+    long estimateIndexBytes() {
+        return Arrays.stream(indexes).mapToLong(SecondaryIndexes::estimateBytes).sum();
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Rating;
+
+/**
+ * Immutable point in time view of the catalogue. Readers pin a version
+ * and use it without locking for as long as they need a consistent view.
+ *
+ * Each stripe comes with its {@link SecondaryIndexes} and
+ * {@link ProductColumns}, so range queries and discount sums see exactly
+ * the products of the version.
+ *
+ * @author fabio
+ */
+final class CatalogueVersion {
+
+    private final long version;
+    private final CatalogueStripe[] stripes;
+    private final long columnChanges;
+    private final int shift;
+
+    CatalogueVersion(long version, CatalogueStripe[] stripes, long columnChanges) {
+        this.version = version;
+        this.stripes = stripes;
+        this.columnChanges = columnChanges;
+        this.shift = 32 - stripeBits(stripes.length);
+    }
+
+    /**
+     * @return how many leading id hash bits choose the stripe of a
+     * catalogue with a power of two stripes
+     */
+    static int stripeBits(int stripeCount) {
+        return Integer.numberOfTrailingZeros(stripeCount);
+    }
+
+    /**
+     * Stripe of a product id, the stripe count is a power of two
+     */
+    int stripe(int id) {
+        return (stripes.length == 1) ? 0 : (id * 0x9E3779B9) >>> shift;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the number of changes to the column values so far, the discount
+     * sums of two versions with the same number are the same
+     */
+    long getColumnChanges() {
+        return columnChanges;
+    }
+
+    ProductEntry get(int id) {
+        return stripes[stripe(id)].get(id);
+    }
+
+    Stream<ProductEntry> values() {
+        return Arrays.stream(stripes).flatMap(CatalogueStripe::values);
+    }
+
+    int size() {
+        return Arrays.stream(stripes).mapToInt(CatalogueStripe::size).sum();
+    }
+
+    CatalogueStripe getStripe(int stripe) {
+        return stripes[stripe];
+    }
+
+    CatalogueVersion withStripe(int stripe, CatalogueStripe entries) {
+        CatalogueStripe[] copy = stripes.clone();
+        copy[stripe] = entries;
+        return new CatalogueVersion(version + 1, copy,
+                columnChanges + entries.getColumnChanges() - stripes[stripe].getColumnChanges());
+    }
+
+    /**
+     * Get the entries whose key is between two values, both included,
+     * with two binary searches or a bucket lookup per stripe part
+     *
+     * @return the entries in key then id order
+     */
+    List<ProductEntry> range(IndexKey key, long from, long to) {
+        List<ProductEntry> found = new ArrayList<>();
+        for (CatalogueStripe stripe : stripes) {
+            stripe.forEach(key, from, to, found::add);
+        }
+        found.sort(Comparator.<ProductEntry>comparingLong(entry -> key.of(entry.getProduct()))
+                .thenComparingInt(entry -> entry.getProduct().getId()));
+        return found;
+    }
+
+    /**
+     * Get how many entries have a key between two values, both included,
+     * without visiting them
+     */
+    int count(IndexKey key, long from, long to) {
+        return Arrays.stream(stripes).mapToInt(stripe -> stripe.count(key, from, to)).sum();
+    }
+
+    /**
+     * Discount of every product of this version summed per rating, in
+     * minor units of money, applying the same rules as {@link Food} and
+     * {@link Drink}
+     *
+     * @return the sums indexed by rating ordinal, with -1 for the ratings
+     * no product has
+     */
+    long[] sumDiscounts(LocalDate today, LocalTime now) {
+        long day = today.toEpochDay();
+        boolean happyHour = ProductColumns.isHappyHour(now);
+        long[] sums = new long[Rating.values().length];
+        int[] counts = new int[sums.length];
+        for (CatalogueStripe stripe : stripes) {
+            stripe.addDiscounts(day, happyHour, sums, counts);
+        }
+        for (int r = 0; r < sums.length; r++) {
+            if (counts[r] == 0) {
+                sums[r] = -1;
+            }
+        }
+        return sums;
+    }
+
+    long estimateIndexBytes() {
+        return Arrays.stream(stripes).mapToLong(CatalogueStripe::estimateIndexBytes).sum();
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Interning pool of review comments. Every distinct text is kept once as
+ * UTF-8 bytes and referred to by an int handle, so the many reviews that
+ * repeat the same comment share it.
+ *
+ * The pool is split into {@link #STRIPES} independent tables chosen by the
+ * hash of the text, so loader threads and writers interning different
+ * texts seldom wait for each other. The low bits of a handle name its
+ * table and the others the text in it, starting at 1 so that no handle is
+ * 0, which marks an empty slot. Texts are never removed. Interning locks
+ * one table; looking a handle up does not lock, a handle is only handed
+ * out after its text is in place.
+ *
+ * @author fabio
+ */
+class CommentPool {
+
+    static final CommentPool SHARED = new CommentPool();
+
+    private static final int STRIPE_BITS = 6;
+    static final int STRIPES = 1 << STRIPE_BITS;
+
+    private final Table[] tables = new Table[STRIPES];
+
+    CommentPool() {
+        for (int i = 0; i < STRIPES; i++) {
+            tables[i] = new Table();
+        }
+    }
+
+    int intern(String comments) {
+        byte[] utf8 = comments.getBytes(StandardCharsets.UTF_8);
+        return intern(ByteBuffer.wrap(utf8), 0, utf8.length);
+    }
+
+    /**
+     * Intern the UTF-8 text between two positions of a buffer, copying it
+     * only when it is new
+     *
+     * @return the handle of the text
+     */
+    int intern(ByteBuffer data, int start, int length) {
+        int hash = hash(data, start, length);
+        int stripe = hash >>> (32 - STRIPE_BITS);
+        return (tables[stripe].intern(hash, data, start, length) << STRIPE_BITS) | stripe;
+    }
+
+    private static int hash(ByteBuffer data, int start, int length) {
+        int hash = 1;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + data.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] text, ByteBuffer data, int start, int length) {
+        if (text.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text[i] != data.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String get(int handle) {
+        return new String(bytes(handle), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the UTF-8 bytes of a text, which must not be changed
+     */
+    byte[] bytes(int handle) {
+        return tables[handle & (STRIPES - 1)].texts[handle >>> STRIPE_BITS];
+    }
+
+    int length(int handle) {
+        return bytes(handle).length;
+    }
+
+    int getTexts() {
+        int texts = 0;
+        for (Table table : tables) {
+            synchronized (table) {
+                texts += table.count;
+            }
+        }
+        return texts;
+    }
+
+    /**
+     * Get the number of comments interned, repeated ones included
+     */
+    long getInterned() {
+        long interned = 0;
+        for (Table table : tables) {
+            synchronized (table) {
+                interned += table.interned;
+            }
+        }
+        return interned;
+    }
+
+    /**
+     * Rough heap footprint of the pool: the text arrays with their
+     * headers and the handle tables
+     */
+    long estimateBytes() {
+        long total = 0;
+        for (Table table : tables) {
+            synchronized (table) {
+                total += table.bytes + 16L * table.count + 8L * table.texts.length
+                        + 4L * table.hashes.length + 4L * table.slots.length;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Rough heap footprint of some of the texts: their arrays with their
+     * headers and their share of the handle tables
+     *
+     * @param handles the handles of the texts
+     */
+    long estimateBytes(BitSet handles) {
+        long total = 0;
+        for (int handle = handles.nextSetBit(0); handle >= 0; handle = handles.nextSetBit(handle + 1)) {
+            total += 16 + bytes(handle).length + 8 + 4 + 2 * 4;
+        }
+        return total;
+    }
+
+    /**
+     * One stripe of the pool, an open addressing table of handles into
+     * the texts of the stripe
+     */
+    private static final class Table {
+
+        // grown as texts come, a table of a few texts stays small
+        private volatile byte[][] texts = new byte[1][];
+        private int[] hashes = new int[1];
+        private int[] slots = new int[2];
+        private int count;
+        private long bytes;
+        private long interned;
+
+        /**
+         * @return the index of the text in this table
+         */
+        synchronized int intern(int hash, ByteBuffer data, int start, int length) {
+            interned++;
+            int mask = slots.length - 1;
+            int slot = hash & mask;
+            for (int index = slots[slot]; index != 0; index = slots[slot]) {
+                if (hashes[index] == hash && matches(texts[index], data, start, length)) {
+                    return index;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int index = ++count;
+            byte[] text = new byte[length];
+            data.get(start, text);
+            if (index == texts.length) {
+                hashes = Arrays.copyOf(hashes, index * 2);
+                byte[][] larger = Arrays.copyOf(texts, index * 2);
+                larger[index] = text;
+                texts = larger;
+            } else {
+                texts[index] = text;
+            }
+            hashes[index] = hash;
+            slots[slot] = index;
+            bytes += length;
+            if (count * 2 > slots.length) {
+                rehash();
+            }
+            return index;
+        }
+
+        private void rehash() {
+            int[] larger = new int[slots.length * 2];
+            int mask = larger.length - 1;
+            for (int index = 1; index <= count; index++) {
+                int slot = hashes[index] & mask;
+                while (larger[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                larger[slot] = index;
+            }
+            slots = larger;
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.time.LocalDate;
+
+/**
+ * Single pass parser of comma separated records. Fields are kept as
+ * offsets into the parsed line and only converted when asked for, numbers
+ * and dates are read straight from the characters and prices become exact
+ * decimals.
+ *
+ * Fields may be quoted with double quotes, a doubled quote inside a quoted
+ * field stands for one quote. The last expected field takes the rest of
+ * the line when it is not quoted, so older files with commas in review
+ * comments still parse.
+ *
+ * A parser is reused from line to line and is not thread safe.
+ *
+ * @author fabio
+ */
+final class CsvParser {
+
+    private final int[] starts;
+    private final int[] ends;
+    private final boolean[] quoted;
+    private CharSequence line;
+    private int count;
+
+    CsvParser(int fields) {
+        starts = new int[fields];
+        ends = new int[fields];
+        quoted = new boolean[fields];
+    }
+
+    /**
+     * Split a line into its fields
+     *
+     * @param line the record to parse
+     * @return this parser, positioned on the record
+     * @throws ParseException when the line has fewer fields than expected
+     * or a quoted field is not terminated
+     */
+    CsvParser parse(CharSequence line) throws ParseException {
+        this.line = line;
+        count = 0;
+        int length = line.length();
+        int position = 0;
+        while (count < starts.length) {
+            int field = count++;
+            if (position < length && line.charAt(position) == '"') {
+                int close = closingQuote(position + 1);
+                starts[field] = position + 1;
+                ends[field] = close;
+                quoted[field] = true;
+                position = close + 1;
+                if (position < length && line.charAt(position) != ',') {
+                    throw new ParseException("Unexpected character after quoted field", position);
+                }
+            } else {
+                int end = (count == starts.length) ? length : indexOfComma(position);
+                starts[field] = position;
+                ends[field] = end;
+                quoted[field] = false;
+                position = end;
+            }
+            if (count < starts.length) {
+                if (position >= length) {
+                    throw new ParseException("Expected " + starts.length + " fields but found " + count, position);
+                }
+                position++;
+            }
+        }
+        return this;
+    }
+
+    private int closingQuote(int from) throws ParseException {
+        int length = line.length();
+        for (int i = from; i < length; i++) {
+            if (line.charAt(i) == '"') {
+                if (i + 1 < length && line.charAt(i + 1) == '"') {
+                    i++;
+                } else {
+                    return i;
+                }
+            }
+        }
+        throw new ParseException("Unterminated quoted field", from);
+    }
+
+    private int indexOfComma(int from) {
+        int length = line.length();
+        for (int i = from; i < length; i++) {
+            if (line.charAt(i) == ',') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    char getChar(int field) throws ParseException {
+        if (ends[field] - starts[field] != 1) {
+            throw new ParseException("Expected a single character", starts[field]);
+        }
+        return line.charAt(starts[field]);
+    }
+
+    String getString(int field) {
+        String text = line.subSequence(starts[field], ends[field]).toString();
+        return quoted[field] ? text.replace("\"\"", "\"") : text;
+    }
+
+    int getInt(int field) {
+        return (int) parseLong(starts[field], ends[field], Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read a decimal number exactly, the digits become the unscaled value
+     * and the digits after the point the scale
+     */
+    BigDecimal getDecimal(int field) {
+        int start = starts[field];
+        int end = ends[field];
+        boolean negative = start < end && line.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        long unscaled = 0;
+        int scale = -1;
+        int digits = 0;
+        for (; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '.' && scale < 0) {
+                scale = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (++digits > 18) {
+                    return new BigDecimal(line.subSequence(start, end).toString());
+                }
+                unscaled = unscaled * 10 + (c - '0');
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else {
+                throw new NumberFormatException("Invalid decimal '" + line.subSequence(start, end) + "'");
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid decimal '" + line.subSequence(start, end) + "'");
+        }
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, Math.max(scale, 0));
+    }
+
+    /**
+     * Read an ISO yyyy-MM-dd date
+     */
+    LocalDate getDate(int field) {
+        int start = starts[field];
+        if (ends[field] - start != 10 || line.charAt(start + 4) != '-' || line.charAt(start + 7) != '-') {
+            return LocalDate.parse(line.subSequence(start, ends[field]));
+        }
+        return LocalDate.of(
+                (int) parseLong(start, start + 4, 0, 9999),
+                (int) parseLong(start + 5, start + 7, 1, 12),
+                (int) parseLong(start + 8, start + 10, 1, 31)
+        );
+    }
+
+    private long parseLong(int start, int end, long min, long max) {
+        boolean negative = start < end && line.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end || end - i > 18) {
+            throw new NumberFormatException("Invalid number '" + line.subSequence(start, end) + "'");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Invalid number '" + line.subSequence(start, end) + "'");
+            }
+            value = value * 10 + (c - '0');
+        }
+        value = negative ? -value : value;
+        if (value < min || value > max) {
+            throw new NumberFormatException("Number out of range '" + line.subSequence(start, end) + "'");
+        }
+        return value;
+    }
+
+}
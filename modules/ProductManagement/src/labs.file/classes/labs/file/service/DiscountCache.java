@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+/**
+ * Discount sums of the catalogue, recomputed only when they may differ:
+ * when a column value changes, when the drink happy hour starts or ends
+ * and when the day changes, which ends the food discounts of the day.
+ *
+ * The sums are kept with the instant they stop being valid, so a call
+ * before that instant and with no change in between only compares two
+ * numbers and a date time.
+ *
+ * @author fabio
+ */
+class DiscountCache {
+
+    private final Catalogue catalogue;
+    private volatile Cached cached;
+
+    DiscountCache(Catalogue catalogue) {
+        this.catalogue = catalogue;
+    }
+
+    /**
+     * @return the sums of {@link CatalogueVersion#sumDiscounts} at a time,
+     * which must not be changed
+     */
+    long[] get(LocalDateTime now) {
+        Cached current = cached;
+        CatalogueVersion version = catalogue.snapshot();
+        if (current != null && current.changes == version.getColumnChanges()
+                && !now.isBefore(current.from) && now.isBefore(current.until)) {
+            return current.sums;
+        }
+        long[] sums = version.sumDiscounts(now.toLocalDate(), now.toLocalTime());
+        cached = new Cached(version.getColumnChanges(), sums, now, nextBoundary(now));
+        return sums;
+    }
+
+    /**
+     * Get the first instant after a time when the discounts may change by
+     * the clock alone. Happy hour starts just after its start time and
+     * ends at its end time.
+     */
+    static LocalDateTime nextBoundary(LocalDateTime now) {
+        LocalDate today = now.toLocalDate();
+        LocalTime time = now.toLocalTime();
+        if (!time.isAfter(ProductColumns.HAPPY_HOUR_START)) {
+            return LocalDateTime.of(today, ProductColumns.HAPPY_HOUR_START.plusNanos(1));
+        }
+        if (time.isBefore(ProductColumns.HAPPY_HOUR_END)) {
+            return LocalDateTime.of(today, ProductColumns.HAPPY_HOUR_END);
+        }
+        return today.plusDays(1).atStartOfDay();
+    }
+
+    private static final class Cached {
+
+        private final long changes;
+        private final long[] sums;
+        private final LocalDateTime from;
+        private final LocalDateTime until;
+
+        private Cached(long changes, long[] sums, LocalDateTime from, LocalDateTime until) {
+            this.changes = changes;
+            this.sums = sums;
+            this.from = from;
+            this.until = until;
+        }
+    }
+
+}
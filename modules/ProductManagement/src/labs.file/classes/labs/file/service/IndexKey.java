@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+
+/**
+ * Product fields the catalogue keeps secondary indexes on, each turned
+ * into a long key that sorts like the field. Fields with a handful of
+ * values are kept in buckets, the others sorted.
+ *
+ * @author fabio
+ */
+enum IndexKey {
+
+    /**
+     * Price in minor units of money
+     */
+    PRICE {
+        @Override
+        long of(Product product) {
+            return product.getPriceMinor();
+        }
+    },
+    RATING {
+        @Override
+        int getBuckets() {
+            return Rating.values().length;
+        }
+
+        @Override
+        long of(Product product) {
+            return product.getRating().ordinal();
+        }
+    },
+    /**
+     * Best before epoch day, of food only
+     */
+    BEST_BEFORE {
+        @Override
+        boolean indexes(Product product) {
+            return product instanceof Food;
+        }
+
+        @Override
+        long of(Product product) {
+            return product.getBestBefore().toEpochDay();
+        }
+    },
+    /**
+     * Kind of product, as the {@link ProductColumns} type constants
+     */
+    TYPE {
+        @Override
+        int getBuckets() {
+            return 3;
+        }
+
+        @Override
+        long of(Product product) {
+            return type(product);
+        }
+    };
+
+    static byte type(Product product) {
+        if (product instanceof Food) {
+            return ProductColumns.FOOD;
+        }
+        if (product instanceof Drink) {
+            return ProductColumns.DRINK;
+        }
+        return ProductColumns.OTHER;
+    }
+
+    static byte type(Class<? extends Product> type) {
+        if (type == Food.class) {
+            return ProductColumns.FOOD;
+        }
+        if (type == Drink.class) {
+            return ProductColumns.DRINK;
+        }
+        return ProductColumns.OTHER;
+    }
+
+    /**
+     * Get the number of distinct keys of a key kept in buckets, or zero
+     * for a key kept sorted
+     */
+    int getBuckets() {
+        return 0;
+    }
+
+    /**
+     * Whether the product has this field at all
+     */
+    boolean indexes(Product product) {
+        return true;
+    }
+
+    abstract long of(Product product);
+
+}
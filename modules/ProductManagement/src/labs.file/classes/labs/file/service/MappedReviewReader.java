@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import labs.pm.data.Rateable;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Bulk reader of review files that scans the UTF-8 bytes directly for
+ * record boundaries and fields, without decoding lines into strings.
+ * Comments are interned in the {@link CommentPool} as they are, so
+ * neither reading nor summarizing a file creates a string. Reviews read
+ * only to be cached are decoded instead, the pool never drops a comment.
+ *
+ * Files larger than {@link #MAP_THRESHOLD} are memory mapped in windows,
+ * smaller ones are read into a heap buffer since mapping costs more than
+ * it saves on a few hundred bytes.
+ *
+ * @author fabio
+ */
+class MappedReviewReader {
+
+    private static final Logger logger = Logger.getLogger(MappedReviewReader.class.getName());
+
+    static final long MAP_THRESHOLD = 64 * 1024;
+    private static final long WINDOW = 1L << 30;
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder records = new LongAdder();
+
+    /**
+     * Read the reviews of a file, interning the comment bytes straight
+     * from the file data
+     */
+    ReviewList read(Path file) throws IOException {
+        ReviewList[] reviews = {ReviewList.EMPTY};
+        byte[][] scratch = {new byte[256]};
+        scan(file, (data, rating, start, end, quoted) -> {
+            int comment;
+            if (quoted) {
+                int length = unquote(data, start, end, scratch);
+                comment = CommentPool.SHARED.intern(ByteBuffer.wrap(scratch[0]), 0, length);
+            } else {
+                comment = CommentPool.SHARED.intern(data, start, end - start);
+            }
+            reviews[0] = reviews[0].plus(rating, comment);
+        });
+        return reviews[0];
+    }
+
+    /**
+     * Read the reviews of a file as review objects without pooling their
+     * comments, for lists that are only kept for a while
+     */
+    List<Review> decode(Path file) throws IOException {
+        List<Review> reviews = new ArrayList<>();
+        byte[][] scratch = {new byte[256]};
+        scan(file, (data, rating, start, end, quoted) -> {
+            int length;
+            if (quoted) {
+                length = unquote(data, start, end, scratch);
+            } else {
+                length = end - start;
+                if (scratch[0].length < length) {
+                    scratch[0] = new byte[Math.max(length, scratch[0].length * 2)];
+                }
+                data.get(start, scratch[0], 0, length);
+            }
+            reviews.add(new Review(rating, new String(scratch[0], 0, length, StandardCharsets.UTF_8)));
+        });
+        return reviews;
+    }
+
+    /**
+     * Append the reviews of a file to the arena chain of a product,
+     * copying the comment bytes straight from the file data
+     *
+     * @return the ratings of the reviews copied
+     */
+    RatingSummary copy(Path file, ReviewArena arena, int id) throws IOException {
+        int[] histogram = new int[Rating.values().length];
+        byte[][] scratch = {new byte[256]};
+        scan(file, (data, rating, start, end, quoted) -> {
+            histogram[rating.ordinal()]++;
+            if (quoted) {
+                int length = unquote(data, start, end, scratch);
+                arena.append(id, rating, ByteBuffer.wrap(scratch[0]), 0, length);
+            } else {
+                arena.append(id, rating, data, start, end - start);
+            }
+        });
+        return RatingSummary.of(histogram);
+    }
+
+    RatingSummary summarize(Path file) throws IOException {
+        int[] histogram = new int[Rating.values().length];
+        scan(file, (data, rating, start, end, quoted) -> histogram[rating.ordinal()]++);
+        return RatingSummary.of(histogram);
+    }
+
+    /**
+     * Copy a quoted comment without its doubled quotes into the scratch
+     * array, growing it when needed
+     *
+     * @return the length of the comment
+     */
+    private static int unquote(ByteBuffer data, int start, int end, byte[][] scratch) {
+        if (scratch[0].length < end - start) {
+            scratch[0] = new byte[Math.max(end - start, scratch[0].length * 2)];
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = data.get(i);
+            scratch[0][length++] = b;
+            if (b == '"') {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    long getRecords() {
+        return records.sum();
+    }
+
+    private void scan(Path file, RecordHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(size - position, WINDOW);
+                ByteBuffer data;
+                if (size > MAP_THRESHOLD) {
+                    data = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                } else {
+                    data = ByteBuffer.allocate((int) length);
+                    while (data.hasRemaining()) {
+                        if (channel.read(data, position + data.position()) < 0) {
+                            break;
+                        }
+                    }
+                    data.flip();
+                }
+                boolean last = position + length == size;
+                int consumed = scanLines(file, data, last, handler);
+                if (consumed == 0 && !last) {
+                    throw new IOException("Review longer than " + WINDOW + " bytes in " + file);
+                }
+                position += consumed;
+            }
+            bytesRead.add(size);
+        }
+    }
+
+    /**
+     * Scan the complete lines of a window
+     *
+     * @return the number of bytes consumed, a trailing partial line is left
+     * for the next window unless this is the last one
+     */
+    private int scanLines(Path file, ByteBuffer data, boolean last, RecordHandler handler) {
+        int limit = data.limit();
+        int position = 0;
+        while (position < limit) {
+            int eol = position;
+            while (eol < limit && data.get(eol) != '\n') {
+                eol++;
+            }
+            if (eol == limit && !last) {
+                break;
+            }
+            int end = (eol > position && data.get(eol - 1) == '\r') ? eol - 1 : eol;
+            if (end > position) {
+                parseLine(file, data, position, end, handler);
+            }
+            position = Math.min(eol + 1, limit);
+        }
+        return position;
+    }
+
+    private void parseLine(Path file, ByteBuffer data, int start, int end, RecordHandler handler) {
+        int position = start;
+        int value = 0;
+        while (position < end && data.get(position) >= '0' && data.get(position) <= '9' && position - start < 9) {
+            value = value * 10 + (data.get(position++) - '0');
+        }
+        if (position == start || position == end || data.get(position) != ',') {
+            warn(file, data, start, end);
+            return;
+        }
+        Rating rating = Rateable.convert(value);
+        int commentStart = position + 1;
+        int commentEnd = end;
+        boolean quoted = false;
+        if (commentStart < end && data.get(commentStart) == '"') {
+            int close = commentStart + 1;
+            while (close < end) {
+                if (data.get(close) == '"') {
+                    if (close + 1 < end && data.get(close + 1) == '"') {
+                        close++;
+                    } else {
+                        break;
+                    }
+                }
+                close++;
+            }
+            if (close != end - 1) {
+                warn(file, data, start, end);
+                return;
+            }
+            commentStart++;
+            commentEnd = close;
+            quoted = true;
+        }
+        records.increment();
+        handler.accept(data, rating, commentStart, commentEnd, quoted);
+    }
+
+    private void warn(Path file, ByteBuffer data, int start, int end) {
+        byte[] line = new byte[end - start];
+        data.get(start, line);
+        logger.log(Level.WARNING, "Error parsing review '" + new String(line, StandardCharsets.UTF_8) + "' in " + file);
+    }
+
+    @FunctionalInterface
+    private interface RecordHandler {
+
+        void accept(ByteBuffer data, Rating rating, int commentStart, int commentEnd, boolean quoted);
+    }
+
+}
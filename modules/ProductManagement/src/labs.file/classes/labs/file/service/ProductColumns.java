@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.List;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+
+/**
+ * Column oriented mirror of one part of a {@link CatalogueStripe}: one
+ * primitive array per product field, so aggregations scan a few flat
+ * arrays instead of chasing a product object per row.
+ *
+ * Immutable, a write copies the columns of its part and the copy is
+ * published in the same {@link CatalogueVersion} as the entries, so a
+ * scan of a pinned version sums exactly the products of that version.
+ *
+ * @author fabio
+ */
+final class ProductColumns {
+
+    static final byte OTHER = 0;
+    static final byte FOOD = 1;
+    static final byte DRINK = 2;
+
+    /**
+     * Best before day of the rows that have none, never today
+     */
+    static final long NO_DATE = Long.MIN_VALUE;
+
+    static final LocalTime HAPPY_HOUR_START = LocalTime.of(17, 30);
+    static final LocalTime HAPPY_HOUR_END = LocalTime.of(18, 30);
+
+    static final ProductColumns EMPTY = new ProductColumns(0);
+
+    private final int[] ids;
+    private final long[] price;
+    private final byte[] rating;
+    private final byte[] type;
+    private final long[] bestBefore;
+    private final long[] discount;
+
+    private ProductColumns(int size) {
+        ids = new int[size];
+        price = new long[size];
+        rating = new byte[size];
+        type = new byte[size];
+        bestBefore = new long[size];
+        discount = new long[size];
+    }
+
+    private ProductColumns(ProductColumns other, int size) {
+        ids = Arrays.copyOf(other.ids, size);
+        price = Arrays.copyOf(other.price, size);
+        rating = Arrays.copyOf(other.rating, size);
+        type = Arrays.copyOf(other.type, size);
+        bestBefore = Arrays.copyOf(other.bestBefore, size);
+        discount = Arrays.copyOf(other.discount, size);
+    }
+
+    static ProductColumns of(List<Product> products) {
+        ProductColumns columns = new ProductColumns(products.size());
+        for (int row = 0; row < products.size(); row++) {
+            columns.set(row, products.get(row));
+        }
+        return columns;
+    }
+
+    /**
+     * Get columns with a product added or its row updated
+     *
+     * @return these columns when the row would not change
+     */
+    ProductColumns with(Product product) {
+        int row = 0;
+        while (row < ids.length && ids[row] != product.getId()) {
+            row++;
+        }
+        if (row < ids.length && price[row] == product.getPriceMinor()
+                && rating[row] == product.getRating().ordinal() && discount[row] == product.getBaseDiscountMinor()
+                && type[row] == IndexKey.type(product) && bestBefore[row] == bestBefore(product)) {
+            return this;
+        }
+        ProductColumns changed = new ProductColumns(this, Math.max(row + 1, ids.length));
+        changed.set(row, product);
+        return changed;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Add the discount of every row to sums per rating, in minor units of
+     * money, applying the same rules as {@link Food} and {@link Drink}
+     *
+     * @param day the epoch day of today
+     * @param counts the number of rows per rating, added to as well
+     */
+    void addDiscounts(long day, boolean happyHour, long[] sums, int[] counts) {
+        for (int i = 0; i < ids.length; i++) {
+            int r = rating[i];
+            byte t = type[i];
+            boolean applies = (t == DRINK) ? happyHour : (t == OTHER || bestBefore[i] == day);
+            counts[r]++;
+            sums[r] += applies ? discount[i] : 0;
+        }
+    }
+
+    static boolean isHappyHour(LocalTime now) {
+        return now.isAfter(HAPPY_HOUR_START) && now.isBefore(HAPPY_HOUR_END);
+    }
+
+    private void set(int row, Product product) {
+        ids[row] = product.getId();
+        price[row] = product.getPriceMinor();
+        rating[row] = (byte) product.getRating().ordinal();
+        discount[row] = product.getBaseDiscountMinor();
+        type[row] = IndexKey.type(product);
+        bestBefore[row] = bestBefore(product);
+    }
+
+    private static long bestBefore(Product product) {
+        return (product instanceof Food) ? product.getBestBefore().toEpochDay() : NO_DATE;
+    }
+
+}
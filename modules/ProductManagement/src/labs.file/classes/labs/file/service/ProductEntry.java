@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Catalogue entry: a product, its reviews and their rating aggregate.
+ * Entries are immutable, a review replaces the entry of the product.
+ *
+ * When reviews are loaded lazily, the reviews held here are only those
+ * added since startup, the stored ones stay in the data files until a
+ * report needs them. The rating aggregate always covers both.
+ *
+ * Every entry made gets a new content version, so an entry whose version
+ * has not changed has the same product and reviews.
+ *
+ * @author fabio
+ */
+final class ProductEntry {
+
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final Product product;
+    private final ReviewList reviews;
+    private final RatingSummary ratings;
+    private final int storedReviews;
+    private final long version = VERSIONS.incrementAndGet();
+
+    ProductEntry(Product product, Collection<Review> reviews) {
+        this(product, ReviewList.of(reviews), RatingSummary.of(reviews), 0);
+    }
+
+    ProductEntry(Product product, ReviewList reviews, RatingSummary ratings, int storedReviews) {
+        this.product = product;
+        this.reviews = reviews;
+        this.ratings = ratings;
+        this.storedReviews = storedReviews;
+    }
+
+    Product getProduct() {
+        return product;
+    }
+
+    ReviewList getReviews() {
+        return reviews;
+    }
+
+    RatingSummary getRatings() {
+        return ratings;
+    }
+
+    /**
+     * Get the number of reviews left in storage rather than held here
+     *
+     * @return the number of reviews not yet loaded
+     */
+    int getStoredReviews() {
+        return storedReviews;
+    }
+
+    /**
+     * Get the content version of the entry, greater than that of any
+     * entry made before it
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get this entry with the product rating derived from its reviews, as
+     * reviewing a product does
+     */
+    ProductEntry rated() {
+        return (ratings.getCount() == 0) ? this
+                : new ProductEntry(product.applyRating(ratings.average()), reviews, ratings, storedReviews);
+    }
+
+    /**
+     * Get this entry with one more review, kept in storage rather than
+     * held here
+     */
+    ProductEntry reviewStored(Rating rating) {
+        RatingSummary summary = ratings.add(rating);
+        return new ProductEntry(
+                product.applyRating(summary.average()),
+                reviews,
+                summary,
+                storedReviews + 1
+        );
+    }
+
+    ProductEntry review(Review review) {
+        RatingSummary summary = ratings.add(review.getRating());
+        return new ProductEntry(
+                product.applyRating(summary.average()),
+                reviews.plus(review),
+                summary,
+                storedReviews
+        );
+    }
+
+}
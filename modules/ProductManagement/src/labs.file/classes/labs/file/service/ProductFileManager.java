@@ -17,39 +17,53 @@
 package labs.file.service;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
-import java.time.Instant;
+import java.time.DateTimeException;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
 import java.time.format.FormatStyle;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 //import labs.client.ResourceFormatter;
 import labs.pm.data.Drink;
 import labs.pm.data.Food;
@@ -59,6 +73,8 @@ import labs.pm.data.Rating;
 import labs.pm.data.Review;
 import labs.pm.service.ProductManagerException;
 import labs.pm.service.ProductManager;
+import labs.pm.service.ProductPage;
+import labs.pm.service.ReportTiming;
 
 /**
  *
@@ -66,22 +82,65 @@ import labs.pm.service.ProductManager;
  */
 public class ProductFileManager implements ProductManager {
 
-    private static final ProductManager pm = new ProductFileManager();
+    private static final int PRODUCT_FIELDS = 6;
 
-    private final ResourceBundle config = ResourceBundle.getBundle("labs.file.service.config");
+    private static final int REVIEW_FIELDS = 2;
+
+    private static final int PRINT_CHUNK = 64 * 1024;
 
-    private final MessageFormat reviewFormat = new MessageFormat(config.getString("review.data.format"));
+    private static final Rating[] RATINGS = Rating.values();
 
-    private final MessageFormat productFormat = new MessageFormat(config.getString("product.data.format"));
+    private final ResourceBundle config = ResourceBundle.getBundle("labs.file.service.config");
 
     private final Path reportsFolder = Path.of(config.getString("reports.folder"));
 
+    private final int reportBufferSize = Integer.parseInt(config.getString("report.buffer.bytes"));
+
+    private final ExecutorService reportExecutor = newReportExecutor();
+
+    private final ReportCache reportCache = Boolean.parseBoolean(config.getString("report.cache"))
+            ? new ReportCache() : null;
+
     private final Path dataFolder = Path.of(config.getString("data.folder"));
 
     private final Path tempFolder = Path.of(config.getString("temp.folder"));
 
+    private final boolean lazyReviews = config.getString("reviews.loading").equals("lazy");
+
+    private final SegmentStore segments = config.getString("storage.mode").equals("segment")
+            ? new SegmentStore(Path.of(config.getString("segment.folder")),
+                    config.getString("segment.file"), Long.parseLong(config.getString("segment.size")))
+            : null;
+
+    // segment appends are durable by themselves, the log would only
+    // write every change twice
+    private final WriteAheadLog wal = segments == null && Boolean.parseBoolean(config.getString("wal.enabled"))
+            ? new WriteAheadLog(Path.of(config.getString("wal.folder")), config.getString("wal.file"),
+                    Long.parseLong(config.getString("wal.commit.window")))
+            : null;
+
+    private final MappedReviewReader mappedReviews = Boolean.parseBoolean(config.getString("reviews.mapped"))
+            ? new MappedReviewReader() : null;
+
+    private final ReviewArena arena = newArena();
+
+    private final ReviewIndex reviewIndex = Boolean.parseBoolean(config.getString("reviews.index"))
+            ? new ReviewIndex() : null;
+
+    private final ReviewCache reviewCache = new ReviewCache(Long.parseLong(config.getString("reviews.cache.bytes")));
+
     //private ResourceFormatter formatter;
-    private Map<Product, List<Review>> products = new HashMap<>();
+    private final Catalogue products = newCatalogue();
+
+    private final DiscountCache discountCache = new DiscountCache(products);
+
+    private final long startupNanos;
+
+    private final boolean snapshotsEnabled = Boolean.parseBoolean(config.getString("snapshot.enabled"));
+
+    private final Snapshotter snapshots = new Snapshotter(products, wal, this::reviewsOf, arena,
+            lazyReviews && arena == null, tempFolder, config.getString("temp.file"), Integer.parseInt(config.getString("snapshot.retain")),
+            Integer.parseInt(config.getString("snapshot.full.every")), snapshotsEnabled ? Long.parseLong(config.getString("snapshot.changes")) : 0);
     private static final Logger logger = Logger.getLogger(ProductManager.class.getName());
     private static final Map<String, ResourceFormatter> formatters
             = Map.of(
@@ -92,19 +151,71 @@ public class ProductFileManager implements ProductManager {
                     "zh-CN", new ResourceFormatter(Locale.CHINA),
                     "pt-BR", new ResourceFormatter(Locale.forLanguageTag("pt-BR"))
             );
-    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-    private final Lock writeLock = lock.writeLock();
-    private final Lock readLock = lock.readLock();
 
 //    public ProductManager(Locale locale) {
 //        this(locale.toLanguageTag());
 //    }
     public ProductFileManager() {
-        loadAllData();
+        long start = System.nanoTime();
+        int generation = -1;
+        if (snapshotsEnabled && segments == null) {
+            generation = restoreData();
+        }
+        if (generation < 0) {
+            loadAllData();
+        }
+        if (wal != null) {
+            replayLog(Math.max(generation, 0));
+        }
+        if (reviewIndex != null) {
+            indexReviews();
+        }
+        if (snapshotsEnabled) {
+            snapshots.start(Long.parseLong(config.getString("snapshot.interval")));
+        }
+        startupNanos = System.nanoTime() - start;
+        logger.log(Level.INFO, MessageFormat.format("Started in {0} ms from {1}",
+                startupNanos / 1_000_000, generation >= 0 ? "snapshots" : "data files"));
     }
 
     public static ProductManager getInstance() {
-        return pm;
+        return InstanceHolder.pm;
+    }
+
+    /**
+     * Create the shared instance on first use rather than while this class
+     * is being initialized, the loader threads need its static fields
+     */
+    private static class InstanceHolder {
+
+        private static final ProductManager pm = new ProductFileManager();
+    }
+
+    /**
+     * Off heap store of the reviews when reviews.store is direct or
+     * mapped, the segment store keeps its reviews on disk anyway
+     */
+    private ReviewArena newArena() {
+        String store = config.getString("reviews.store");
+        if (segments != null || store.equals("heap")) {
+            return null;
+        }
+        try {
+            return new ReviewArena(
+                    store.equals("mapped") ? Path.of(config.getString("reviews.arena.folder")) : null,
+                    config.getString("reviews.arena.file"),
+                    Integer.parseInt(config.getString("reviews.arena.slab")));
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error creating the review arena, keeping reviews on the heap " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    private Catalogue newCatalogue() {
+        return new Catalogue(
+                config.getString("lock.mode").equals("global")
+                ? 1 : Integer.parseInt(config.getString("lock.stripes"))
+        );
     }
 
 //    public void printProducts(Comparator<Product> sorter) {
@@ -112,21 +223,22 @@ public class ProductFileManager implements ProductManager {
 //    }
     @Override
     public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, String languageTag) {
-        try {
-            readLock.lock();
-            ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
-            StringBuilder txt = new StringBuilder();
-            txt.append(
-                products.keySet().stream()
-                        .sorted(sorter)
-                        .filter(filter)
-                        .map(p -> formatter.formatProduct(p) + '\n')
-                        .collect(Collectors.joining())
-            );
-            System.out.println(txt);
-        }finally{
-            readLock.unlock();
-        }
+        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
+        StringBuilder txt = new StringBuilder();
+        products.snapshot()
+                .values()
+                .map(ProductEntry::getProduct)
+                .filter(filter)
+                .sorted(sorter)
+                .forEachOrdered(p -> {
+                    txt.append(formatter.formatProduct(p)).append('\n');
+                    // print as it goes rather than build one giant string
+                    if (txt.length() >= PRINT_CHUNK) {
+                        System.out.print(txt);
+                        txt.setLength(0);
+                    }
+                });
+        System.out.println(txt);
 //        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
 //        //List<Product> productList = new ArrayList<>(products.keySet());
 //        //Collections.sort(productList, sorter);
@@ -161,16 +273,22 @@ public class ProductFileManager implements ProductManager {
 
     @Override
     public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) {
+        long start = System.nanoTime();
         Product product = null;
+        Lock writeLock = products.writeLock(id);
         try {
             writeLock.lock();
             product = new Food(id, name, price, rating, bestBefore);
-            products.putIfAbsent(product, new ArrayList<>());
+            addProduct(product);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error storing product " + ex.getMessage(), ex);
+            return null;
         } catch (Exception ex) {
             logger.log(Level.INFO, "Error adding product " + ex.getMessage());
             return null;
         } finally {
             writeLock.unlock();
+            snapshots.recordWrite(System.nanoTime() - start);
         }
 
         return product;
@@ -178,86 +296,221 @@ public class ProductFileManager implements ProductManager {
 
     @Override
     public Product createProduct(int id, String name, BigDecimal price, Rating rating) {
+        long start = System.nanoTime();
         Product product = null;
+        Lock writeLock = products.writeLock(id);
         try {
             writeLock.lock();
             product = new Drink(id, name, price, rating);
-            products.putIfAbsent(product, new ArrayList<>());
+            addProduct(product);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error storing product " + ex.getMessage(), ex);
+            return null;
         } catch (Exception ex) {
             logger.log(Level.INFO, "Error adding product " + ex.getMessage());
             return null;
         } finally {
             writeLock.unlock();
+            snapshots.recordWrite(System.nanoTime() - start);
         }
 
         return product;
     }
 
-    private Product reviewProduct(Product product, Rating rating, String comments) {
-        List<Review> reviews = products.get(product);
-        products.remove(product, reviews);
-        reviews.add(new Review(rating, comments));
-        product.applyRating(
-                Rateable.convert(
-                        (int) Math.round(
-                                reviews.stream()
-                                        .mapToInt(r -> r.getRating().ordinal())
-                                        .average()
-                                        .orElse(0)
-                        )
-                )
-        );
+    /**
+     * Add a product unless one with the same id exists, persisting it
+     * first when a segment store or the write ahead log is used. Caller
+     * must hold the write lock of the id.
+     */
+    private void addProduct(Product product) throws IOException {
+        if (products.snapshot().get(product.getId()) == null) {
+            if (segments != null) {
+                segments.append(product);
+            }
+            if (wal != null) {
+                wal.commit(wal.append(product));
+            }
+            products.put(product.getId(), newEntry(product));
+            snapshots.markDirty(product.getId());
+        }
+    }
+
+    private ProductEntry newEntry(Product product) {
+        if (arena != null) {
+            arena.clear(product.getId());
+        }
+        return new ProductEntry(product, ReviewList.EMPTY, RatingSummary.EMPTY, 0);
+    }
+
+    /**
+     * Add a review to an entry, appending it to the review arena when
+     * there is one. Caller must hold the write lock of the product.
+     */
+    private ProductEntry review(ProductEntry entry, Review review) {
+        if (arena == null) {
+            return entry.review(review);
+        }
+        arena.append(entry.getProduct().getId(), review);
+        return entry.reviewStored(review.getRating());
+    }
+
+    private Product reviewProduct(Product product, Review review) throws IOException {
+        if (segments != null) {
+            segments.append(product.getId(), review);
+        }
+        ProductEntry entry = review(products.snapshot().get(product.getId()), review);
+        snapshots.markDirty(product.getId());
 //        int sum = 0;
 //        for (Review review : reviews) {
 //            sum += review.getRating().ordinal();
 //        }
 //
 //        product = product.applyRating(Rateable.convert(Math.round((float) sum / reviews.size())));
-        products.put(product, reviews);
-        return product;
+        products.put(product.getId(), entry);
+        if (reviewIndex != null) {
+            reviewIndex.add(product.getId(), List.of(review));
+        }
+        return entry.getProduct();
     }
     
     @Override
     public void printProductReport(int id, String languageTag, String client) {
         try {
-            readLock.lock();
-            printProductReport(findProduct(id), languageTag, client);
+            printProductReport(findEntry(products.snapshot(), id), languageTag, client);
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.getMessage());
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error priting product report " + ex.getMessage(), ex);
-        } finally {
-            readLock.unlock();
         }
     }
 
-    private void printProductReport(Product product, String languageTag, String client) throws IOException {
+    @Override
+    public List<CompletableFuture<ReportTiming>> printProductReports(Collection<Integer> ids, Collection<String> languageTags, Collection<String> clients) {
+        Set<String> languages = new LinkedHashSet<>(languageTags);
+        if (languages.size() > 1 && !config.getString("report.file").contains("{2}")) {
+            throw new IllegalArgumentException("The report file name has no {2} to tell the languages apart");
+        }
+        Set<String> clientSet = new LinkedHashSet<>(clients);
+        long submitted = System.nanoTime();
+        CatalogueVersion catalogue = products.snapshot();
+        List<CompletableFuture<ReportTiming>> reports = new ArrayList<>();
+        for (int id : new LinkedHashSet<>(ids)) {
+            List<CompletableFuture<ReportTiming>> productReports = new ArrayList<>();
+            for (int i = languages.size() * clientSet.size(); i > 0; i--) {
+                productReports.add(new CompletableFuture<>());
+            }
+            reports.addAll(productReports);
+            // one task per product rather than per report, so at most one
+            // review list per worker is held in memory at a time
+            reportExecutor.execute(() -> printProductReports(catalogue, id, languages, clientSet, submitted, productReports));
+        }
+        return reports;
+    }
+
+    /**
+     * Read the reviews of a product at most once and write its reports
+     * one after the other, completing each report's future as it is
+     * written or found current
+     */
+    private void printProductReports(CatalogueVersion catalogue, int id, Set<String> languages, Set<String> clients,
+            long submitted, List<CompletableFuture<ReportTiming>> reports) {
+        Iterator<CompletableFuture<ReportTiming>> next = reports.iterator();
+        try {
+            ProductEntry entry = findEntry(catalogue, id);
+            List<Review> reviews = null;
+            for (String languageTag : languages) {
+                for (String client : clients) {
+                    CompletableFuture<ReportTiming> report = next.next();
+                    long start = System.nanoTime();
+                    try {
+                        Path productFile = reportFile(entry.getProduct(), languageTag, client);
+                        boolean current = reportCache != null && reportCache.isCurrent(productFile, entry, languageTag);
+                        if (!current) {
+                            if (reviews == null) {
+                                reviews = reviewsOf(entry);
+                            }
+                            printProductReport(entry, reviews, productFile, languageTag);
+                        }
+                        long end = System.nanoTime();
+                        report.complete(new ReportTiming(id, languageTag, client, !current,
+                                Duration.ofNanos(start - submitted), Duration.ofNanos(end - start)));
+                    } catch (IOException ex) {
+                        logger.log(Level.SEVERE, "Error priting product report " + ex.getMessage(), ex);
+                        report.completeExceptionally(ex);
+                    }
+                }
+            }
+        } catch (ProductManagerException | RuntimeException ex) {
+            // fails the reports not written yet, the others stay complete
+            reports.forEach(report -> report.completeExceptionally(ex));
+        }
+    }
+
+    /**
+     * Pool of report.threads daemon workers (0 means one per available
+     * processor) writing batches of reports
+     */
+    private ExecutorService newReportExecutor() {
+        int threads = Integer.parseInt(config.getString("report.threads"));
+        AtomicInteger workers = new AtomicInteger();
+        return Executors.newFixedThreadPool((threads > 0) ? threads : Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, "reporter-" + workers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void printProductReport(ProductEntry entry, String languageTag, String client) throws IOException {
+        Path productFile = reportFile(entry.getProduct(), languageTag, client);
+        if (reportCache != null && reportCache.isCurrent(productFile, entry, languageTag)) {
+            return;
+        }
+        // the arena is read lazily while writing, other stores once
+        printProductReport(entry, (arena == null) ? reviewsOf(entry) : null, productFile, languageTag);
+    }
+
+    private Path reportFile(Product product, String languageTag, String client) {
+        return reportsFolder
+                .resolve(MessageFormat
+                        .format(config
+                                .getString("report.file"), product.getId(), client, languageTag
+                        ));
+    }
+
+    /**
+     * @param reviews the reviews of the entry, null to read them from the
+     * arena one rating at a time
+     */
+    private void printProductReport(ProductEntry entry, List<Review> reviews, Path productFile, String languageTag) throws IOException {
         ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
-        List<Review> reviews = products.get(product);
-        Collections.sort(reviews);
-
-        Path productFile
-                = reportsFolder
-                        .resolve(MessageFormat
-                                .format(config
-                                        .getString("report.file"), product.getId(), client
-                                ));
-        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(productFile, StandardOpenOption.CREATE), "UTF-8"))) {
-            out.append(formatter.formatProduct(product));
-            out.append('\n');
-
-            if (reviews.isEmpty()) {
-                out.append(formatter.getText("no-reviews") + System.lineSeparator());
-            } else {
-                out.append(
-                        reviews.stream()
-                                .map(r -> formatter.formatReview(r) + System.lineSeparator())
-                                .collect(Collectors.joining())
-                );
-                //Alternative
-                //reviews.forEach(r->txt.append(formatter.formatReview(r) + '\n'));
-                //In parallel it may result in unpredictable behavior 
-                //since using Collectors.joining above guarantees a correct result
+        Product product = entry.getProduct();
+        // taken before formatting, a report printed across midnight is
+        // then written again rather than kept with the wrong date
+        LocalDate bestBefore = product.getBestBefore();
+
+        try (ReportWriter out = new ReportWriter(productFile, reportBufferSize)) {
+            out.write(formatter.formatProduct(product));
+            out.write("\n");
+
+            boolean reviewed = false;
+            // reviews sort by rating, highest first, so rather than sorting
+            // a copy each rating is written in turn in the order given
+            for (int r = RATINGS.length - 1; r >= 0; r--) {
+                Iterator<Review> rated = (reviews == null)
+                        ? arena.iterator(product.getId(), entry.getStoredReviews(), RATINGS[r])
+                        : rated(reviews, RATINGS[r]);
+                while (rated.hasNext()) {
+                    out.write(formatter.formatReview(rated.next()));
+                    out.write(System.lineSeparator());
+                    reviewed = true;
+                }
+            }
+            if (!reviewed) {
+                out.write(formatter.getText("no-reviews") + System.lineSeparator());
+            }
+            out.commit();
+            if (reportCache != null) {
+                reportCache.written(productFile, entry, languageTag, bestBefore, out);
             }
         }
 
@@ -272,26 +525,57 @@ public class ProductFileManager implements ProductManager {
         //System.out.println(txt);
     }
 
+    /**
+     * Iterate over the reviews with one rating, making review objects only
+     * for those when the reviews are a {@link ReviewList}
+     */
+    private static Iterator<Review> rated(List<Review> reviews, Rating rating) {
+        if (reviews instanceof ReviewList) {
+            ReviewList list = (ReviewList) reviews;
+            return IntStream.range(0, list.size())
+                    .filter(i -> list.getRating(i) == rating)
+                    .mapToObj(list::get)
+                    .iterator();
+        }
+        return reviews.stream().filter(review -> review.getRating() == rating).iterator();
+    }
+
     @Override
     public Product reviewProduct(int id, Rating rating, String comments) {
+        long start = System.nanoTime();
+        Product product;
+        Lock writeLock = products.writeLock(id);
         try {
             writeLock.lock();
-            return reviewProduct(findProduct(id), rating, comments);
+            Review review = new Review(rating, comments);
+            product = findProduct(id);
+            if (wal != null) {
+                // durable before visible, a review that cannot be logged is
+                // not applied; writers of other stripes still share the
+                // group commit
+                wal.commit(wal.append(id, review));
+            }
+            product = reviewProduct(product, review);
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.getMessage());
+            return null;
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error storing review " + ex.getMessage(), ex);
+            return null;
         } finally {
             writeLock.unlock();
+            snapshots.recordWrite(System.nanoTime() - start);
         }
-        return null;
+        return product;
     }
 
     
 
-    private Review parseReview(String text) {
+    private Review parseReview(CsvParser parser, String text) {
         Review review = null;
         try {
-            Object[] values = reviewFormat.parse(text);
-            review = new Review(Rateable.convert(Integer.parseInt((String) values[0])), (String) values[1]);
+            parser.parse(text);
+            review = new Review(Rateable.convert(parser.getInt(0)), parser.getString(1));
             //reviewProduct(
             //        Integer.parseInt((String) values[0]),
             //        Rateable.convert(Integer.parseInt((String) values[1])),
@@ -303,28 +587,30 @@ public class ProductFileManager implements ProductManager {
         return review;
     }
 
-    private Product parseProduct(String text) {
+    private Product parseProduct(CsvParser parser, String text) {
         Product product = null;
         try {
-            Object[] values = productFormat.parse(text);
-            int id = Integer.parseInt((String) values[1]);
-            String name = (String) values[2];
-            BigDecimal price = BigDecimal.valueOf(Double.parseDouble((String) values[3]));
-            Rating rating = Rateable.convert(Integer.parseInt((String) values[4]));
-            switch ((String) values[0]) {
-                case "D":
+            parser.parse(text);
+            int id = parser.getInt(1);
+            String name = parser.getString(2);
+            BigDecimal price = parser.getDecimal(3);
+            Rating rating = Rateable.convert(parser.getInt(4));
+            switch (parser.getChar(0)) {
+                case 'D':
                     product = new Drink(id, name, price, rating);
                     //createProduct(id, name, price, rating);
                     break;
-                case "F":
-                    LocalDate bestBefore = LocalDate.parse((String) values[5]);
+                case 'F':
+                    LocalDate bestBefore = parser.getDate(5);
                     product = new Food(id, name, price, rating, bestBefore);
                 //createProduct(id, name, price, rating, bestBefore);
             }
 
         } catch (ParseException
                 | NumberFormatException
-                | DateTimeParseException ex) {
+                | DateTimeException
+                | ArithmeticException ex) {
+            // prices whose minor units do not fit a long are skipped too
             logger.log(Level.WARNING, "Error parsing product '" + text + "' " + ex.getMessage());
         }
         return product;
@@ -332,18 +618,7 @@ public class ProductFileManager implements ProductManager {
 
     @Override
     public Product findProduct(int id) throws ProductManagerException {
-        try {
-            readLock.lock();
-            return products.keySet()
-                    .stream()
-                    .filter((p) -> p.getId() == id)
-                    .findFirst()
-                    //.get();
-                    .orElseThrow(()
-                            -> new ProductManagerException("Product with id " + id + " not found"));
-        } finally {
-            readLock.unlock();
-        }
+        return findEntry(products.snapshot(), id).getProduct();
 
         //.orElseGet(() -> null);
 //        for (Product product : products.keySet()) {
@@ -355,61 +630,344 @@ public class ProductFileManager implements ProductManager {
         //return result;
     }
 
+    @Override
+    public Map<Rating, Integer> getRatingDistribution(int id) throws ProductManagerException {
+        return findEntry(products.snapshot(), id).getRatings().toMap();
+    }
+
+    @Override
+    public long getCatalogueVersion() {
+        return products.snapshot().getVersion();
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new TreeMap<>();
+        metrics.put("catalogue.version", products.snapshot().getVersion());
+        metrics.put("catalogue.products", products.snapshot().size());
+        metrics.put("catalogue.indexes.bytes", products.snapshot().estimateIndexBytes());
+        metrics.put("reviews.cache.hits", reviewCache.getHits());
+        metrics.put("reviews.cache.misses", reviewCache.getMisses());
+        metrics.put("reviews.cache.evictions", reviewCache.getEvictions());
+        metrics.put("reviews.cache.bytes", reviewCache.getUsedBytes());
+        if (wal != null) {
+            metrics.put("wal.commits", wal.getCommits());
+            metrics.put("wal.records", wal.getRecords());
+        }
+        metrics.put("startup.ms", startupNanos / 1_000_000);
+        snapshots.addMetrics(metrics);
+        if (mappedReviews != null) {
+            metrics.put("reviews.mapped.bytes", mappedReviews.getBytesRead());
+            metrics.put("reviews.mapped.records", mappedReviews.getRecords());
+        }
+        if (arena != null) {
+            metrics.put("reviews.arena.slabs", arena.getSlabs());
+            metrics.put("reviews.arena.chunks", arena.getChunks());
+            metrics.put("reviews.arena.bytes", arena.getUsedBytes());
+            metrics.put("reviews.arena.capacity", arena.getCapacityBytes());
+        }
+        if (reviewIndex != null) {
+            reviewIndex.addMetrics(metrics);
+        }
+        if (reportCache != null) {
+            reportCache.addMetrics(metrics);
+        }
+        metrics.put("comments.pool.texts", CommentPool.SHARED.getTexts());
+        metrics.put("comments.pool.interned", CommentPool.SHARED.getInterned());
+        metrics.put("comments.pool.bytes", CommentPool.SHARED.estimateBytes());
+        return metrics;
+    }
+
+    /**
+     * Memory report of the reviews held in the catalogue: what they take
+     * as packed ratings and the pooled comments they refer to, against
+     * what the same reviews took as review objects with their own strings
+     */
+    @Override
+    public Map<String, Number> getReviewMemory() {
+        Map<String, Number> metrics = new TreeMap<>();
+        long count = 0;
+        long listBytes = 0;
+        long objectBytes = 0;
+        // only the comments of these reviews, the pool also holds texts
+        // interned for other lists
+        BitSet comments = new BitSet();
+        for (ProductEntry entry : (Iterable<ProductEntry>) products.snapshot().values()::iterator) {
+            ReviewList list = entry.getReviews();
+            count += list.size();
+            listBytes += list.estimateBytes();
+            objectBytes += list.estimateObjectBytes();
+            for (int i = 0; i < list.size(); i++) {
+                comments.set(list.getComment(i));
+            }
+        }
+        long compactBytes = listBytes + CommentPool.SHARED.estimateBytes(comments);
+        metrics.put("reviews.memory.count", count);
+        metrics.put("reviews.memory.compact.bytes", compactBytes);
+        metrics.put("reviews.memory.objects.bytes", objectBytes);
+        if (count > 0) {
+            metrics.put("reviews.memory.compact.per.review", (double) compactBytes / count);
+            metrics.put("reviews.memory.objects.per.review", (double) objectBytes / count);
+        }
+        return metrics;
+    }
+
+    private ProductEntry findEntry(CatalogueVersion catalogue, int id) throws ProductManagerException {
+        ProductEntry entry = catalogue.get(id);
+        if (entry == null) {
+            throw new ProductManagerException("Product with id " + id + " not found");
+        }
+        return entry;
+    }
+
+    @Override
+    public ProductPage findProducts(Predicate<Product> filter, Comparator<Product> sorter, int offset, int limit, String languageTag) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Negative offset or limit");
+        }
+        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
+        BoundedHeap<Product> top = new BoundedHeap<>(sorter.thenComparingInt(Product::getId),
+                (int) Math.min((long) offset + limit, Integer.MAX_VALUE));
+        products.snapshot()
+                .values()
+                .map(ProductEntry::getProduct)
+                .filter(filter)
+                .forEach(top);
+        List<Product> found = top.toList();
+        return new ProductPage(found.subList(Math.min(offset, found.size()), found.size()),
+                offset, top.getCount(), formatter::formatProduct);
+    }
+
+    @Override
+    public List<Product> findProductsByPrice(BigDecimal from, BigDecimal to) {
+        long fromMinor = toMinor(from);
+        long toMinor = toMinor(to);
+        // prices with more decimals round into the boundary keys, so only
+        // those are compared exactly
+        return products.snapshot().range(IndexKey.PRICE, fromMinor, toMinor).stream()
+                .map(ProductEntry::getProduct)
+                .filter(p -> (p.getPriceMinor() != fromMinor || p.getPrice().compareTo(from) >= 0)
+                        && (p.getPriceMinor() != toMinor || p.getPrice().compareTo(to) <= 0))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Round an amount half up to minor units of money, like the price
+     * index does, saturating at the range of a long
+     */
+    private static long toMinor(BigDecimal amount) {
+        BigInteger minor = amount.setScale(Product.MONEY_SCALE, RoundingMode.HALF_UP).unscaledValue();
+        if (minor.bitLength() > 63) {
+            return (minor.signum() > 0) ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        return minor.longValue();
+    }
+
+    @Override
+    public List<Product> findProductsByRating(Rating from, Rating to) {
+        return findIndexed(IndexKey.RATING, from.ordinal(), to.ordinal());
+    }
+
+    @Override
+    public List<Product> findProductsByBestBefore(LocalDate from, LocalDate to) {
+        return findIndexed(IndexKey.BEST_BEFORE, from.toEpochDay(), to.toEpochDay());
+    }
+
+    @Override
+    public List<Product> findProductsExpiring(int days) {
+        LocalDate today = LocalDate.now();
+        return findProductsByBestBefore(today, today.plusDays(days));
+    }
+
+    @Override
+    public List<Product> findProductsByType(Class<? extends Product> type) {
+        byte key = IndexKey.type(type);
+        return findIndexed(IndexKey.TYPE, key, key);
+    }
+
+    private List<Product> findIndexed(IndexKey key, long from, long to) {
+        return products.snapshot().range(key, from, to).stream()
+                .map(ProductEntry::getProduct)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public Map<Product, Integer> searchReviews(String word, boolean prefix, Rating from, Rating to, int limit) {
+        String[] words = ReviewIndex.words(word);
+        if (words.length != 1) {
+            throw new IllegalArgumentException("Not a single word: " + word);
+        }
+        CatalogueVersion catalogue = products.snapshot();
+        ReviewIndex.Hits hits = (reviewIndex != null)
+                ? reviewIndex.find(words[0], prefix, from, to)
+                : ReviewIndex.scan(catalogue.values().sorted(Comparator.comparingInt(entry -> entry.getProduct().getId())),
+                        this::reviewsOf, words[0], prefix, from, to);
+        BoundedHeap<Integer> top = new BoundedHeap<>(
+                Comparator.<Integer>comparingInt(i -> -hits.count(i)).thenComparingInt(hits::id), limit);
+        for (int i = 0; i < hits.size(); i++) {
+            top.accept(i);
+        }
+        Map<Product, Integer> found = new LinkedHashMap<>();
+        for (int i : top.toList()) {
+            ProductEntry entry = catalogue.get(hits.id(i));
+            if (entry != null) {
+                found.put(entry.getProduct(), hits.count(i));
+            }
+        }
+        return found;
+    }
+
     @Override
     public Map<String, String> getDiscounts(String languageTag) {
-        try {
-            readLock.lock();
-            ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
-            return products.keySet()
-                .stream()
-                .collect(
-                        Collectors.groupingBy(
-                                p -> p.getRating().getStars(),
-                                Collectors.collectingAndThen(
-                                        Collectors.summingDouble(
-                                                p -> p.getDiscount().doubleValue()
-                                        ),
-                                        discount -> formatter.moneyFormat.format(discount)
-                                )
-                        )
-                );
-        } finally {
-            readLock.unlock();
+        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-GB"));
+        long[] sums = discountCache.get(LocalDateTime.now());
+        Map<String, String> discounts = new HashMap<>();
+        Rating[] ratings = Rating.values();
+        for (int r = 0; r < sums.length; r++) {
+            if (sums[r] >= 0) {
+                discounts.put(ratings[r].getStars(), formatter.moneyFormat.format(BigDecimal.valueOf(sums[r], Product.MONEY_SCALE)));
+            }
         }
-        
+        return discounts;
     }
 
-    private List<Review> loadReviews(Product product) {
+    private Path reviewsFile(int id) {
+        return dataFolder.resolve(
+                MessageFormat.format(config.getString("reviews.data.file"), String.valueOf(id))
+        );
+    }
+
+    /**
+     * @param pooled whether the reviews are held by the catalogue for good,
+     * with their comments in the pool, rather than cached for a while as
+     * review objects the cache can let go of
+     */
+    private List<Review> loadReviews(Product product, boolean pooled) {
         List<Review> reviews = null;
-        Path file
-                = dataFolder.resolve(
-                        MessageFormat.format(config.getString("reviews.data.file"), product.getId())
-                );
+        Path file = reviewsFile(product.getId());
         if (Files.notExists(file)) {
-            reviews = new ArrayList<>();
-        } else {
+            reviews = ReviewList.EMPTY;
+        } else if (mappedReviews != null) {
             try {
-                reviews = Files.lines(file, Charset.forName("UTF-8"))
-                        .map(text -> parseReview(text))
+                reviews = pooled ? mappedReviews.read(file) : mappedReviews.decode(file);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error loading the reviews " + ex.getMessage(), ex);
+                reviews = ReviewList.EMPTY;
+            }
+        } else {
+            try (Stream<String> lines = Files.lines(file, Charset.forName("UTF-8"))) {
+                CsvParser parser = new CsvParser(REVIEW_FIELDS);
+                reviews = lines
+                        .map(text -> parseReview(parser, text))
                         .filter(review -> review != null)
                         .collect(Collectors.toList());
+                if (pooled) {
+                    reviews = ReviewList.of(reviews);
+                }
+            } catch (IOException | UncheckedIOException ex) {
+                logger.log(Level.WARNING, "Error loading the reviews " + ex.getMessage(), ex);
+                reviews = ReviewList.EMPTY;
+            }
+        }
+        return reviews;
+    }
+
+    /**
+     * Copy the stored reviews of a product into the review arena
+     *
+     * @return the ratings of the reviews copied
+     */
+    private RatingSummary copyReviews(Product product) {
+        int id = product.getId();
+        arena.clear(id);
+        RatingSummary summary = RatingSummary.EMPTY;
+        Path file = reviewsFile(id);
+        if (Files.exists(file) && mappedReviews != null) {
+            try {
+                summary = mappedReviews.copy(file, arena, id);
             } catch (IOException ex) {
                 logger.log(Level.WARNING, "Error loading the reviews " + ex.getMessage(), ex);
             }
+        } else if (Files.exists(file)) {
+            try (Stream<String> lines = Files.lines(file, Charset.forName("UTF-8"))) {
+                CsvParser parser = new CsvParser(REVIEW_FIELDS);
+                summary = lines
+                        .map(text -> parseReview(parser, text))
+                        .filter(review -> review != null)
+                        .reduce(RatingSummary.EMPTY, (ratings, review) -> {
+                            arena.append(id, review);
+                            return ratings.add(review.getRating());
+                        }, (a, b) -> a);
+            } catch (IOException | UncheckedIOException ex) {
+                logger.log(Level.WARNING, "Error loading the reviews " + ex.getMessage(), ex);
+            }
         }
+        return summary;
+    }
+
+    /**
+     * Aggregate the ratings of the stored reviews without keeping them
+     */
+    private RatingSummary summarizeReviews(Product product) {
+        RatingSummary summary = RatingSummary.EMPTY;
+        Path file = reviewsFile(product.getId());
+        if (Files.exists(file) && mappedReviews != null) {
+            try {
+                summary = mappedReviews.summarize(file);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error loading the reviews " + ex.getMessage(), ex);
+            }
+        } else if (Files.exists(file)) {
+            try (Stream<String> lines = Files.lines(file, Charset.forName("UTF-8"))) {
+                CsvParser parser = new CsvParser(REVIEW_FIELDS);
+                summary = lines
+                        .map(text -> parseReview(parser, text))
+                        .filter(review -> review != null)
+                        .reduce(RatingSummary.EMPTY, (ratings, review) -> ratings.add(review.getRating()), (a, b) -> a);
+            } catch (IOException | UncheckedIOException ex) {
+                logger.log(Level.WARNING, "Error loading the reviews " + ex.getMessage(), ex);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Get all reviews of an entry, loading the stored ones through the
+     * review cache when they are not held in memory
+     */
+    private List<Review> reviewsOf(ProductEntry entry) {
+        if (entry.getStoredReviews() == 0) {
+            return entry.getReviews();
+        }
+        if (arena != null) {
+            return arena.read(entry.getProduct().getId(), entry.getStoredReviews());
+        }
+        List<Review> stored = reviewCache.get(entry.getProduct().getId(), () -> loadStoredReviews(entry));
+        List<Review> reviews = new ArrayList<>(stored.size() + entry.getReviews().size());
+        reviews.addAll(stored);
+        reviews.addAll(entry.getReviews());
         return reviews;
     }
 
+    private List<Review> loadStoredReviews(ProductEntry entry) {
+        // not pooled, the pool would keep the comments of lists the cache
+        // has evicted
+        if (segments == null) {
+            return loadReviews(entry.getProduct(), false);
+        }
+        try {
+            return segments.readReviews(entry.getProduct().getId(), entry.getStoredReviews());
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error loading the reviews " + ex.getMessage(), ex);
+            return new ArrayList<>();
+        }
+    }
+
     private Product loadProduct(Path file) {
         Product product = null;
-        try {
-            product = parseProduct(
-                    Files.lines(
-                            dataFolder.resolve(file),
-                            Charset.forName("UTF-8")
-                    ).findFirst().orElseThrow()
-            );
-        } catch (IOException | NoSuchElementException ex) {
+        try (Stream<String> lines = Files.lines(dataFolder.resolve(file), Charset.forName("UTF-8"))) {
+            product = parseProduct(new CsvParser(PRODUCT_FIELDS), lines.findFirst().orElseThrow());
+        } catch (IOException | UncheckedIOException | NoSuchElementException ex) {
             logger.log(Level.WARNING, "Error loading the product " + ex.getMessage(), ex);
         }
 
@@ -417,52 +975,277 @@ public class ProductFileManager implements ProductManager {
     }
 
     private void loadAllData() {
+        if (segments == null) {
+            loadCsvData();
+        } else {
+            loadSegments();
+        }
+    }
+
+    /**
+     * Load products and their reviews on a bounded pool of
+     * loader.threads workers (0 means one per available processor),
+     * logging progress every loader.progress.interval products (0 for
+     * none) and the time spent in each phase. Products that fail to load
+     * are logged and left out; startup fails when the data folder cannot
+     * be listed or the load is interrupted, rather than going on empty.
+     */
+    private void loadCsvData() {
+        int threads = Integer.parseInt(config.getString("loader.threads"));
+        int progressInterval = Integer.parseInt(config.getString("loader.progress.interval"));
+        ExecutorService executor = Executors.newFixedThreadPool(
+                (threads > 0) ? threads : Runtime.getRuntime().availableProcessors()
+        );
         try {
-            products
-                    = Files
-                            .list(dataFolder)
-                            .filter(file -> file.getFileName().toString().startsWith("product"))
-                            .map(file -> loadProduct(file))
-                            .collect(Collectors.toMap(product -> product, product -> loadReviews(product)));
+            long start = System.nanoTime();
+            List<Path> files;
+            try (Stream<Path> list = Files.list(dataFolder)) {
+                files = list
+                        .filter(file -> file.getFileName().toString().startsWith("product"))
+                        .collect(Collectors.toList());
+            }
+            long listed = System.nanoTime();
+
+            LongAdder productNanos = new LongAdder();
+            LongAdder reviewNanos = new LongAdder();
+            LongAdder reviewCount = new LongAdder();
+            AtomicInteger loaded = new AtomicInteger();
+            List<Callable<ProductEntry>> tasks = files.stream()
+                    .map(file -> (Callable<ProductEntry>) () -> {
+                        long begin = System.nanoTime();
+                        Product product = loadProduct(file);
+                        long parsed = System.nanoTime();
+                        productNanos.add(parsed - begin);
+                        if (product == null) {
+                            return null;
+                        }
+                        ProductEntry entry;
+                        if (arena != null) {
+                            RatingSummary ratings = copyReviews(product);
+                            entry = new ProductEntry(product, ReviewList.EMPTY, ratings, ratings.getCount());
+                        } else if (lazyReviews) {
+                            RatingSummary ratings = summarizeReviews(product);
+                            entry = new ProductEntry(product, ReviewList.EMPTY, ratings, ratings.getCount());
+                        } else {
+                            entry = new ProductEntry(product, loadReviews(product, true));
+                        }
+                        // rated by its reviews like every other load path and
+                        // reviewing does, the data file rating only counts for
+                        // products without reviews
+                        entry = entry.rated();
+                        reviewNanos.add(System.nanoTime() - parsed);
+                        reviewCount.add(entry.getRatings().getCount());
+                        int count = loaded.incrementAndGet();
+                        if (progressInterval > 0 && count % progressInterval == 0) {
+                            logger.log(Level.INFO, "Loaded " + count + " of " + files.size() + " products");
+                        }
+                        return entry;
+                    })
+                    .collect(Collectors.toList());
+            List<ProductEntry> entries = new ArrayList<>(files.size());
+            List<Future<ProductEntry>> results = executor.invokeAll(tasks);
+            int failed = 0;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    ProductEntry entry = results.get(i).get();
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                } catch (ExecutionException ex) {
+                    // one product that cannot be loaded does not lose the others
+                    failed++;
+                    logger.log(Level.SEVERE, "Error loading " + files.get(i) + " " + ex.getCause(), ex.getCause());
+                }
+            }
+            if (failed > 0) {
+                logger.log(Level.SEVERE, MessageFormat.format("{0} of {1} products failed to load",
+                        failed, files.size()));
+            }
+            long parsed = System.nanoTime();
+
+            products.replace(entries.stream());
+            long indexed = System.nanoTime();
+
+            logger.log(Level.INFO, MessageFormat.format(
+                    "Loaded {0} products and {1} reviews in {2} ms on {3} threads: "
+                    + "list {4} ms, parse products {5} ms, parse reviews {6} ms (cpu), index build {7} ms",
+                    entries.size(), reviewCount.sum(), (indexed - start) / 1_000_000,
+                    ((ThreadPoolExecutor) executor).getMaximumPoolSize(),
+                    (listed - start) / 1_000_000, productNanos.sum() / 1_000_000,
+                    reviewNanos.sum() / 1_000_000, (indexed - parsed) / 1_000_000
+            ));
+            if (mappedReviews != null) {
+                double megabytes = mappedReviews.getBytesRead() / (1024.0 * 1024.0);
+                logger.log(Level.INFO, MessageFormat.format(
+                        "Scanned {0,number,0.0} MB of reviews at {1,number,0.0} MB/s",
+                        megabytes, megabytes / Math.max((parsed - listed) / 1e9, 1e-9)
+                ));
+            }
         } catch (IOException ex) {
             logger.log(Level.SEVERE, "Error loading data " + ex.getMessage(), ex);
+            throw new UncheckedIOException(ex);
+        } catch (InterruptedException ex) {
+            logger.log(Level.SEVERE, "Interrupted loading data", ex);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted loading data", ex);
+        } finally {
+            executor.shutdown();
         }
     }
 
-    private void dumpData() {
+    /**
+     * Load the catalogue from the segment store, importing the product
+     * and review files into it the first time the store is used
+     */
+    private void loadSegments() {
         try {
-            if (Files.notExists(tempFolder)) {
-                Files.createDirectory(tempFolder);
-            }
-            Path tempFile = tempFolder.resolve(
-                    MessageFormat.format(config.getString("temp.file"), Instant.now())
+            long start = System.nanoTime();
+            ProductIndex<Product> loaded = new ProductIndex<>();
+            ProductIndex<List<Review>> reviews = new ProductIndex<>();
+            ProductIndex<int[]> histograms = new ProductIndex<>();
+            segments.open(
+                    product -> loaded.put(product.getId(), product),
+                    (review, id) -> {
+                        if (lazyReviews) {
+                            int[] histogram = histograms.get(id);
+                            if (histogram == null) {
+                                histogram = new int[Rating.values().length];
+                                histograms.put(id, histogram);
+                            }
+                            histogram[review.getRating().ordinal()]++;
+                        } else {
+                            List<Review> list = reviews.get(id);
+                            if (list == null) {
+                                list = new ArrayList<>();
+                                reviews.put(id, list);
+                            }
+                            list.add(review);
+                        }
+                    }
             );
-            try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(tempFile, StandardOpenOption.CREATE))) {
-                out.writeObject(products);
-                //products = new HashMap<>();
+            if (segments.isEmpty()) {
+                convertToSegments();
+                return;
             }
+            products.replace(loaded.values().map(product -> {
+                if (lazyReviews) {
+                    int[] histogram = histograms.get(product.getId());
+                    RatingSummary ratings = (histogram == null) ? RatingSummary.EMPTY : RatingSummary.of(histogram);
+                    return new ProductEntry(product, ReviewList.EMPTY, ratings, ratings.getCount()).rated();
+                }
+                List<Review> list = reviews.get(product.getId());
+                return new ProductEntry(product, (list == null) ? List.of() : list).rated();
+            }));
+            logger.log(Level.INFO, MessageFormat.format(
+                    "Loaded {0} products from segments in {1} ms",
+                    loaded.size(), (System.nanoTime() - start) / 1_000_000
+            ));
         } catch (IOException ex) {
-            logger.log(Level.SEVERE, "Error dumping data " + ex.getMessage(), ex);
+            logger.log(Level.SEVERE, "Error loading segments " + ex.getMessage(), ex);
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * One shot conversion of the productNNN.csv and reviewsNNN.csv files
+     * into the segment store, started again on the next startup when it
+     * does not finish
+     */
+    private void convertToSegments() throws IOException {
+        logger.log(Level.INFO, "Converting product and review files to segments");
+        segments.beginImport();
+        loadCsvData();
+        List<ProductEntry> entries = products.snapshot().values().collect(Collectors.toList());
+        for (ProductEntry entry : entries) {
+            Product product = entry.getProduct();
+            segments.append(product);
+            List<Review> reviews = (entry.getStoredReviews() > 0) ? loadReviews(product, false) : entry.getReviews();
+            for (Review review : reviews) {
+                segments.append(product.getId(), review);
+            }
         }
+        segments.endImport();
+        products.replace(entries.stream());
     }
 
-    @SuppressWarnings(value = "unchecked")
-    private void restoreData() {
+    /**
+     * Apply the changes logged since the data files were written or the
+     * snapshot was taken
+     *
+     * @param generation the first log generation to replay
+     */
+    private void replayLog(int generation) {
         try {
+            long start = System.nanoTime();
+            int replayed = wal.open(generation,
+                    product -> {
+                        if (products.snapshot().get(product.getId()) == null) {
+                            products.put(product.getId(), newEntry(product));
+                            snapshots.markDirty(product.getId());
+                        }
+                    },
+                    (review, id) -> {
+                        ProductEntry entry = products.snapshot().get(id);
+                        if (entry != null) {
+                            products.put(id, review(entry, review));
+                            snapshots.markDirty(id);
+                        }
+                    });
+            logger.log(Level.INFO, MessageFormat.format("Replayed {0} log records in {1} ms",
+                    replayed, (System.nanoTime() - start) / 1_000_000));
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error replaying the write ahead log " + ex.getMessage(), ex);
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Build the review index from every review in the catalogue, in id
+     * order so the postings are written sequentially. This reads every
+     * stored review, so with lazy, segment or arena reviews the index is
+     * worth turning on only where searches matter more than startup.
+     */
+    private void indexReviews() {
+        long start = System.nanoTime();
+        products.snapshot()
+                .values()
+                .sorted(Comparator.comparingInt(entry -> entry.getProduct().getId()))
+                .forEach(entry -> reviewIndex.add(entry.getProduct().getId(), reviewsOf(entry)));
+        logger.log(Level.INFO, MessageFormat.format("Indexed the reviews in {0} ms",
+                (System.nanoTime() - start) / 1_000_000));
+    }
 
-            Path tempFile = Files.list(tempFolder)
-                    .filter(path -> path.getFileName().toString().endsWith("tmp"))
-                    .findFirst().orElseThrow();
-            try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(tempFile, StandardOpenOption.DELETE_ON_CLOSE))) {
+    private void dumpData() {
+        try {
+            snapshots.snapshot();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error dumping data " + ex.getMessage(), ex);
+        }
+    }
 
-                products = (HashMap) in.readObject();
+    /**
+     * Restore the catalogue from the snapshots. Startup fails when there
+     * are snapshots but they cannot be restored, rather than falling back
+     * to the data files and a log whose early generations were discarded.
+     *
+     * @return the first log generation to replay, -1 when there are no
+     * snapshots
+     */
+    private int restoreData() {
+        try {
+            long start = System.nanoTime();
+            int generation = snapshots.restore();
+            if (generation >= 0) {
+                logger.log(Level.INFO, MessageFormat.format("Restored {0} products from {1} in {2} ms",
+                        products.snapshot().size(), tempFolder, (System.nanoTime() - start) / 1_000_000));
             }
-        } catch (Exception ex) {
-            logger.log(Level.SEVERE, "Error loading data " + ex.getMessage(), ex);
+            return generation;
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error restoring the snapshots " + ex.getMessage(), ex);
+            throw new UncheckedIOException(ex);
         }
     }
-    
-    
+
     private static class ResourceFormatter {
 
     private Locale locale;
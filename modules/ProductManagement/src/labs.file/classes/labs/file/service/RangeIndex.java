@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable array of (key, product id) pairs sorted by key then id, so a
+ * range of keys is found with two binary searches.
+ *
+ * Changing an index makes a changed copy, which costs as much as the
+ * stripe copy the catalogue makes on every write anyway.
+ *
+ * @author fabio
+ */
+final class RangeIndex {
+
+    static final RangeIndex EMPTY = new RangeIndex(new long[0], new int[0]);
+
+    private final long[] keys;
+    private final int[] ids;
+
+    private RangeIndex(long[] keys, int[] ids) {
+        this.keys = keys;
+        this.ids = ids;
+    }
+
+    /**
+     * Sort the first pairs of two arrays into an index, the arrays are
+     * changed
+     */
+    static RangeIndex of(long[] keys, int[] ids, int size) {
+        boolean packable = true;
+        for (int i = 0; i < size && packable; i++) {
+            packable = keys[i] == (int) keys[i];
+        }
+        long[] sortedKeys = new long[size];
+        int[] sortedIds = new int[size];
+        if (packable) {
+            // key in the high half and id in the low half sort as a pair
+            long[] packed = new long[size];
+            for (int i = 0; i < size; i++) {
+                packed[i] = (keys[i] << 32) | (ids[i] - (long) Integer.MIN_VALUE);
+            }
+            Arrays.sort(packed);
+            for (int i = 0; i < size; i++) {
+                sortedKeys[i] = packed[i] >> 32;
+                sortedIds[i] = (int) (packed[i] + Integer.MIN_VALUE);
+            }
+        } else {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingLong(i -> keys[i]).thenComparingInt(i -> ids[i]));
+            for (int i = 0; i < size; i++) {
+                sortedKeys[i] = keys[order[i]];
+                sortedIds[i] = ids[order[i]];
+            }
+        }
+        return new RangeIndex(sortedKeys, sortedIds);
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    long key(int position) {
+        return keys[position];
+    }
+
+    int id(int position) {
+        return ids[position];
+    }
+
+    /**
+     * Get the position of the first pair whose key is not less than a key
+     */
+    int lowerBound(long key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the position of the first pair whose key is greater than a key
+     */
+    int upperBound(long key) {
+        return (key == Long.MAX_VALUE) ? keys.length : lowerBound(key + 1);
+    }
+
+    private int position(long key, int id) {
+        int low = lowerBound(key);
+        int high = upperBound(key);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ids[middle] < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    RangeIndex with(long key, int id) {
+        int at = position(key, id);
+        long[] newKeys = new long[keys.length + 1];
+        int[] newIds = new int[ids.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, at);
+        System.arraycopy(ids, 0, newIds, 0, at);
+        newKeys[at] = key;
+        newIds[at] = id;
+        System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+        System.arraycopy(ids, at, newIds, at + 1, ids.length - at);
+        return new RangeIndex(newKeys, newIds);
+    }
+
+    RangeIndex without(long key, int id) {
+        int at = position(key, id);
+        if (at == ids.length || keys[at] != key || ids[at] != id) {
+            return this;
+        }
+        long[] newKeys = new long[keys.length - 1];
+        int[] newIds = new int[ids.length - 1];
+        System.arraycopy(keys, 0, newKeys, 0, at);
+        System.arraycopy(ids, 0, newIds, 0, at);
+        System.arraycopy(keys, at + 1, newKeys, at, newKeys.length - at);
+        System.arraycopy(ids, at + 1, newIds, at, newIds.length - at);
+        return new RangeIndex(newKeys, newIds);
+    }
+
+    /**
+     * Rough heap footprint of the arrays
+     */
+    long estimateBytes() {
+        return 32 + 12L * ids.length;
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import labs.pm.data.Rateable;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Running rating aggregate of a product: sum, count and a histogram
+ * indexed by {@link Rating#ordinal()}. Instances are immutable, adding a
+ * rating returns a new summary in constant time.
+ *
+ * @author fabio
+ */
+final class RatingSummary {
+
+    static final RatingSummary EMPTY = new RatingSummary(0, 0, new int[Rating.values().length]);
+
+    private final long sum;
+    private final int count;
+    private final int[] histogram;
+
+    private RatingSummary(long sum, int count, int[] histogram) {
+        this.sum = sum;
+        this.count = count;
+        this.histogram = histogram;
+    }
+
+    static RatingSummary of(Collection<Review> reviews) {
+        int[] histogram = new int[Rating.values().length];
+        if (reviews instanceof ReviewList) {
+            ReviewList list = (ReviewList) reviews;
+            for (int i = 0; i < list.size(); i++) {
+                histogram[list.getRating(i).ordinal()]++;
+            }
+        } else {
+            for (Review review : reviews) {
+                histogram[review.getRating().ordinal()]++;
+            }
+        }
+        return of(histogram);
+    }
+
+    /**
+     * Build a summary from review counts indexed by rating ordinal
+     */
+    static RatingSummary of(int[] histogram) {
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            sum += (long) i * histogram[i];
+            count += histogram[i];
+        }
+        return new RatingSummary(sum, count, histogram.clone());
+    }
+
+    RatingSummary add(Rating rating) {
+        int[] counts = histogram.clone();
+        counts[rating.ordinal()]++;
+        return new RatingSummary(sum + rating.ordinal(), count + 1, counts);
+    }
+
+    /**
+     * Get the rounded average of all ratings, the same value the product
+     * rating is derived from
+     *
+     * @return the average rating, NOT_RATED when there are no ratings
+     */
+    Rating average() {
+        return Rateable.convert(
+                count == 0 ? 0 : (int) Math.round((double) sum / count)
+        );
+    }
+
+    long getSum() {
+        return sum;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getCount(Rating rating) {
+        return histogram[rating.ordinal()];
+    }
+
+    Map<Rating, Integer> toMap() {
+        Map<Rating, Integer> distribution = new EnumMap<>(Rating.class);
+        for (Rating rating : Rating.values()) {
+            distribution.put(rating, histogram[rating.ordinal()]);
+        }
+        return distribution;
+    }
+
+}
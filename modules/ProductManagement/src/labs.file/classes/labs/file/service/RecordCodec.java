@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rateable;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Compact binary encoding of products and reviews shared by the storage
+ * formats: variable length integers, prices as unscaled value and scale,
+ * dates as epoch days, ratings as one byte and length prefixed UTF-8
+ * text.
+ *
+ * @author fabio
+ */
+final class RecordCodec {
+
+    static final byte DRINK = 'D';
+    static final byte FOOD = 'F';
+
+    private RecordCodec() {
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length number");
+    }
+
+    static void putVarInt(ByteBuffer buffer, int value) {
+        putVarLong(buffer, value & 0xFFFFFFFFL);
+    }
+
+    static int getVarInt(ByteBuffer buffer) {
+        return (int) getVarLong(buffer);
+    }
+
+    static void putSignedVarLong(ByteBuffer buffer, long value) {
+        putVarLong(buffer, (value << 1) ^ (value >> 63));
+    }
+
+    static long getSignedVarLong(ByteBuffer buffer) {
+        long value = getVarLong(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void putString(ByteBuffer buffer, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        putVarInt(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = getVarInt(buffer);
+        String text;
+        if (buffer.hasArray()) {
+            text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    static void putPrice(ByteBuffer buffer, Product product) {
+        putSignedVarLong(buffer, product.getPriceUnits());
+        buffer.put((byte) product.getPriceScale());
+    }
+
+    static BigDecimal getPrice(ByteBuffer buffer) {
+        long unscaled = getSignedVarLong(buffer);
+        return BigDecimal.valueOf(unscaled, buffer.get());
+    }
+
+    static Rating getRating(ByteBuffer buffer) {
+        return Rateable.convert(buffer.get());
+    }
+
+    /**
+     * Largest number of bytes {@link #putProduct} may write
+     */
+    static int maxSize(Product product) {
+        return 1 + 5 + 5 + 3 * product.getName().length() + 10 + 1 + 1 + 10;
+    }
+
+    /**
+     * Largest number of bytes {@link #putReview} may write
+     */
+    static int maxSize(Review review) {
+        return 1 + 5 + 3 * review.getComments().length();
+    }
+
+    static void putProduct(ByteBuffer buffer, Product product) {
+        boolean food = product instanceof Food;
+        buffer.put(food ? FOOD : DRINK);
+        putVarInt(buffer, product.getId());
+        putString(buffer, product.getName());
+        putPrice(buffer, product);
+        buffer.put((byte) product.getRating().ordinal());
+        if (food) {
+            putSignedVarLong(buffer, product.getBestBefore().toEpochDay());
+        }
+    }
+
+    static Product getProduct(ByteBuffer buffer) {
+        byte kind = buffer.get();
+        int id = getVarInt(buffer);
+        String name = getString(buffer);
+        BigDecimal price = getPrice(buffer);
+        Rating rating = getRating(buffer);
+        switch (kind) {
+            case DRINK:
+                return new Drink(id, name, price, rating);
+            case FOOD:
+                return new Food(id, name, price, rating, LocalDate.ofEpochDay(getSignedVarLong(buffer)));
+            default:
+                throw new IllegalArgumentException("Unknown product kind " + kind);
+        }
+    }
+
+    static void putReview(ByteBuffer buffer, Review review) {
+        buffer.put((byte) review.getRating().ordinal());
+        putString(buffer, review.getComments());
+    }
+
+    static Review getReview(ByteBuffer buffer) {
+        Rating rating = getRating(buffer);
+        return new Review(rating, getString(buffer));
+    }
+
+    /**
+     * Largest number of bytes {@link #putReviews} may write
+     */
+    static int maxSize(List<Review> reviews) {
+        int size = 5;
+        if (reviews instanceof ReviewList) {
+            ReviewList list = (ReviewList) reviews;
+            for (int i = 0; i < list.size(); i++) {
+                size += 1 + 5 + CommentPool.SHARED.length(list.getComment(i));
+            }
+        } else {
+            for (Review review : reviews) {
+                size += maxSize(review);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Write the review count and the reviews, copying the pooled comment
+     * bytes of a {@link ReviewList} without making review objects
+     */
+    static void putReviews(ByteBuffer buffer, List<Review> reviews) {
+        putVarInt(buffer, reviews.size());
+        if (reviews instanceof ReviewList) {
+            ReviewList list = (ReviewList) reviews;
+            for (int i = 0; i < list.size(); i++) {
+                byte[] comment = CommentPool.SHARED.bytes(list.getComment(i));
+                buffer.put((byte) list.getRating(i).ordinal());
+                putVarInt(buffer, comment.length);
+                buffer.put(comment);
+            }
+        } else {
+            for (Review review : reviews) {
+                putReview(buffer, review);
+            }
+        }
+    }
+
+    /**
+     * Read what {@link #putReviews} wrote, interning the comments straight
+     * from the buffer
+     */
+    static ReviewList getReviews(ByteBuffer buffer) {
+        return getReviews(buffer, 0, null);
+    }
+
+    /**
+     * Read what {@link #putReviews} wrote, skipping the first reviews
+     *
+     * @param skip how many of the first reviews to leave out
+     * @param histogram where to count the ratings of all the reviews,
+     * skipped ones included, null for none
+     * @return the reviews after the skipped ones
+     */
+    static ReviewList getReviews(ByteBuffer buffer, int skip, int[] histogram) {
+        int count = getVarInt(buffer);
+        if (skip < 0 || skip > count) {
+            throw new IllegalArgumentException("Cannot skip " + skip + " of " + count + " reviews");
+        }
+        ReviewList reviews = ReviewList.EMPTY;
+        for (int i = 0; i < count; i++) {
+            Rating rating = getRating(buffer);
+            int length = getVarInt(buffer);
+            if (i >= skip) {
+                reviews = reviews.plus(rating, CommentPool.SHARED.intern(buffer, buffer.position(), length));
+            }
+            buffer.position(buffer.position() + length);
+            if (histogram != null) {
+                histogram[rating.ordinal()]++;
+            }
+        }
+        return reviews;
+    }
+
+    /**
+     * Read what {@link #putReviews} wrote into the arena chain of a
+     * product, copying the comments straight from the buffer
+     *
+     * @return the ratings of the reviews copied
+     */
+    static RatingSummary copyReviews(ByteBuffer buffer, ReviewArena arena, int id) {
+        int count = getVarInt(buffer);
+        int[] histogram = new int[Rating.values().length];
+        for (int i = 0; i < count; i++) {
+            Rating rating = getRating(buffer);
+            int length = getVarInt(buffer);
+            arena.append(id, rating, buffer, buffer.position(), length);
+            buffer.position(buffer.position() + length);
+            histogram[rating.ordinal()]++;
+        }
+        return RatingSummary.of(histogram);
+    }
+
+}
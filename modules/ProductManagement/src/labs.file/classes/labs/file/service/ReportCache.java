@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the reports written, so that a report is not written again
+ * while its product and reviews, its language and the best before date it
+ * prints stay the same. The date is part of it as drinks are best before
+ * the day they are printed.
+ *
+ * A report counts as current only while its file is still the one
+ * written, with the same size and modification time, so a report deleted
+ * or changed outside is written again.
+ *
+ * @author fabio
+ */
+class ReportCache {
+
+    private final Map<Path, Written> reports = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * Check whether a file holds the report of a catalogue entry in a
+     * language, counting a hit or a miss
+     */
+    boolean isCurrent(Path file, ProductEntry entry, String languageTag) {
+        Written written = reports.get(file);
+        if (written != null && written.version == entry.getVersion()
+                && written.languageTag.equals(languageTag)
+                && written.bestBefore.equals(entry.getProduct().getBestBefore())) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.size() == written.bytes && attributes.lastModifiedTime().equals(written.modified)) {
+                    hits.increment();
+                    bytesSaved.add(written.bytes);
+                    return true;
+                }
+            } catch (IOException ex) {
+                // the report is gone, it is written again
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Remember the report just committed by a writer
+     *
+     * @param bestBefore the best before date printed in the report
+     */
+    void written(Path file, ProductEntry entry, String languageTag, LocalDate bestBefore, ReportWriter out) {
+        reports.put(file, new Written(entry.getVersion(), languageTag, bestBefore, out.getBytes(), out.getModified()));
+    }
+
+    void addMetrics(Map<String, Number> metrics) {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        metrics.put("reports.cache.hits", hitCount);
+        metrics.put("reports.cache.misses", missCount);
+        metrics.put("reports.cache.bytes.saved", bytesSaved.sum());
+        metrics.put("reports.cache.entries", reports.size());
+        if (hitCount + missCount > 0) {
+            metrics.put("reports.cache.hit.rate", (double) hitCount / (hitCount + missCount));
+        }
+    }
+
+    private static class Written {
+
+        private final long version;
+        private final String languageTag;
+        private final LocalDate bestBefore;
+        private final long bytes;
+        private final FileTime modified;
+
+        private Written(long version, String languageTag, LocalDate bestBefore, long bytes, FileTime modified) {
+            this.version = version;
+            this.languageTag = languageTag;
+            this.bestBefore = bestBefore;
+            this.bytes = bytes;
+            this.modified = modified;
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes a text file as UTF-8 through a fixed size buffer straight to a
+ * file channel, so the memory it takes does not depend on the length of
+ * the text.
+ *
+ * The text goes to a new temporary file next to the target, which
+ * replaces the target in one rename on {@link #commit()}. Readers see the
+ * old file or the whole new one, never a partial or stale mix, and the
+ * new file keeps the permissions of the old one. Closing a writer that
+ * was not committed deletes the temporary file.
+ *
+ * @author fabio
+ */
+class ReportWriter implements AutoCloseable {
+
+    private final Path file;
+    private final Path temp;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private long bytes;
+    private FileTime modified;
+    private boolean committed;
+
+    ReportWriter(Path file, int bufferSize) throws IOException {
+        this.file = file;
+        this.temp = newTemp(file);
+        this.channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Create the temporary file like any other file, rather than with the
+     * owner only permissions of {@link Files#createTempFile}, taking the
+     * permissions of the report it replaces when there is one
+     */
+    private static Path newTemp(Path file) throws IOException {
+        Path temp;
+        while (true) {
+            temp = file.resolveSibling(file.getFileName() + "."
+                    + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp");
+            try {
+                Files.createFile(temp);
+                break;
+            } catch (FileAlreadyExistsException ex) {
+                // taken by another writer, try another name
+            }
+        }
+        PosixFileAttributeView view = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+        if (view != null && Files.exists(file)) {
+            try {
+                Files.setPosixFilePermissions(temp, view.readAttributes().permissions());
+            } catch (IOException ex) {
+                Files.deleteIfExists(temp);
+                throw ex;
+            }
+        }
+        return temp;
+    }
+
+    void write(CharSequence text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        for (;;) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                flush();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        bytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write what is left in the buffer and put the file in place of the
+     * target
+     */
+    void commit() throws IOException {
+        flush();
+        channel.close();
+        // taken before the move, which keeps it, so that a writer replacing
+        // the file right after does not pass for this one
+        modified = Files.getLastModifiedTime(temp);
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+    }
+
+    /**
+     * Get the number of bytes written to the file so far, all of them once
+     * committed
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the modification time of the file committed
+     */
+    FileTime getModified() {
+        return modified;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Review store outside of the java heap. Review records are kept in large
+ * direct or memory mapped slabs, and the records of a product in a chain
+ * of chunks cut from them, each chunk twice the size of the previous one
+ * up to {@link #MAX_CHUNK}. Only the index from product id to its chain
+ * lives on the heap.
+ *
+ * A chunk starts with the address of the next chunk, the bytes used and
+ * its capacity, followed by records of a rating ordinal, the comment
+ * length and the UTF-8 comment. Addresses hold the slab number in the
+ * high and the offset in the low half.
+ *
+ * Records are only appended, so a reader that knows how many reviews a
+ * product had in its catalogue entry reads exactly those while writers
+ * keep appending. Appends to the same product must be serialized, the
+ * catalogue does so with the stripe write lock. Chunks are never reused,
+ * clearing a product just starts a new chain.
+ *
+ * @author fabio
+ */
+class ReviewArena {
+
+    static final int MIN_CHUNK = 64;
+    static final int MAX_CHUNK = 16 * 1024;
+
+    private static final int NEXT = 0;
+    private static final int USED = Long.BYTES;
+    private static final int CAPACITY = USED + Integer.BYTES;
+    private static final int HEADER = CAPACITY + Integer.BYTES;
+    private static final long NONE = -1;
+    private static final Rating[] RATINGS = Rating.values();
+
+    private final Path folder;
+    private final String fileName;
+    private final int slabSize;
+
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int slabOffset;
+    private long chunks;
+    private final ProductIndex<Chain> chains = new ProductIndex<>();
+
+    /**
+     * @param folder where the slab files are mapped, null for direct
+     * buffers
+     * @param fileName pattern of the slab file names, {0} is the slab
+     * number
+     * @param slabSize bytes per slab
+     */
+    ReviewArena(Path folder, String fileName, int slabSize) throws IOException {
+        this.folder = folder;
+        this.fileName = fileName;
+        this.slabSize = slabSize;
+        if (folder != null) {
+            Files.createDirectories(folder);
+            for (int slab = 0; Files.deleteIfExists(slabFile(slab)); slab++) {
+                // slabs of a previous run are rebuilt from the data
+            }
+        }
+    }
+
+    private Path slabFile(int slab) {
+        return folder.resolve(MessageFormat.format(fileName, String.valueOf(slab)));
+    }
+
+    /**
+     * Start a new, empty chain for a product
+     */
+    synchronized void clear(int id) {
+        chains.put(id, new Chain());
+    }
+
+    void append(int id, Review review) {
+        byte[] comment = review.getComments().getBytes(StandardCharsets.UTF_8);
+        append(id, review.getRating(), ByteBuffer.wrap(comment), 0, comment.length);
+    }
+
+    /**
+     * Append a review whose UTF-8 comment is between two positions of a
+     * buffer
+     */
+    void append(int id, Rating rating, ByteBuffer data, int start, int length) {
+        int size = 1 + 5 + length;
+        Chain chain = chain(id);
+        long tail = chain.tail;
+        ByteBuffer slab = (tail == NONE) ? null : slab(tail);
+        int chunk = (int) tail;
+        if (slab == null || slab.getInt(chunk + CAPACITY) - slab.getInt(chunk + USED) < size) {
+            int capacity = (slab == null) ? MIN_CHUNK : Math.min(slab.getInt(chunk + CAPACITY) * 2, MAX_CHUNK);
+            long next = allocate(Math.max(capacity, HEADER + size));
+            if (slab == null) {
+                chain.head = next;
+            } else {
+                slab.putLong(chunk + NEXT, next);
+            }
+            chain.tail = next;
+            slab = slab(next);
+            chunk = (int) next;
+        }
+        int position = chunk + slab.getInt(chunk + USED);
+        slab.put(position++, (byte) rating.ordinal());
+        for (int value = length; ; value >>>= 7) {
+            if ((value & ~0x7F) == 0) {
+                slab.put(position++, (byte) value);
+                break;
+            }
+            slab.put(position++, (byte) ((value & 0x7F) | 0x80));
+        }
+        if (data.hasArray()) {
+            slab.put(position, data.array(), data.arrayOffset() + start, length);
+        } else {
+            slab.duplicate().position(position).put(data.duplicate().limit(start + length).position(start));
+        }
+        position += length;
+        // the record is complete before the used bytes cover it
+        slab.putInt(chunk + USED, position - chunk);
+    }
+
+    /**
+     * Read the first reviews of a product
+     *
+     * @param count how many reviews the catalogue entry has
+     */
+    List<Review> read(int id, int count) {
+        List<Review> reviews = new ArrayList<>(count);
+        iterator(id, count, null).forEachRemaining(reviews::add);
+        return reviews;
+    }
+
+    /**
+     * Iterate over the first reviews of a product, decoding one review at
+     * a time and skipping the comments of the reviews not wanted
+     *
+     * @param count how many reviews the catalogue entry has
+     * @param rating the rating of the reviews wanted, null for all
+     */
+    Iterator<Review> iterator(int id, int count, Rating rating) {
+        return new Records(chain(id).head, count, rating);
+    }
+
+    private synchronized Chain chain(int id) {
+        Chain chain = chains.get(id);
+        if (chain == null) {
+            chain = new Chain();
+            chains.put(id, chain);
+        }
+        return chain;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32)];
+    }
+
+    /**
+     * Cut a chunk from the current slab, starting a new slab when it does
+     * not fit
+     *
+     * @return the address of the chunk
+     */
+    private synchronized long allocate(int capacity) {
+        if (capacity > slabSize) {
+            throw new IllegalArgumentException("Review of " + capacity + " bytes does not fit a slab of " + slabSize);
+        }
+        ByteBuffer[] current = slabs;
+        if (current.length == 0 || slabOffset + capacity > slabSize) {
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = newSlab(current.length - 1);
+            slabs = current;
+            slabOffset = 0;
+        }
+        int chunk = slabOffset;
+        ByteBuffer slab = current[current.length - 1];
+        slab.putLong(chunk + NEXT, NONE);
+        slab.putInt(chunk + USED, HEADER);
+        slab.putInt(chunk + CAPACITY, capacity);
+        slabOffset += capacity;
+        chunks++;
+        return ((long) (current.length - 1) << 32) | chunk;
+    }
+
+    private ByteBuffer newSlab(int slab) {
+        if (folder == null) {
+            return ByteBuffer.allocateDirect(slabSize);
+        }
+        try (FileChannel channel = FileChannel.open(slabFile(slab), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, slabSize);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    synchronized int getSlabs() {
+        return slabs.length;
+    }
+
+    synchronized long getChunks() {
+        return chunks;
+    }
+
+    synchronized long getCapacityBytes() {
+        return (long) slabs.length * slabSize;
+    }
+
+    /**
+     * Get the bytes taken by the chunks cut so far, records and headers
+     */
+    synchronized long getUsedBytes() {
+        return (slabs.length == 0) ? 0 : (long) (slabs.length - 1) * slabSize + slabOffset;
+    }
+
+    private final class Records implements Iterator<Review> {
+
+        private final int count;
+        private final Rating rating;
+        private long address;
+        private ByteBuffer slab;
+        private int position;
+        private int end;
+        private int seen;
+        private Review next;
+        private byte[] scratch = new byte[256];
+
+        private Records(long head, int count, Rating rating) {
+            this.count = count;
+            this.rating = rating;
+            this.address = head;
+            open();
+            advance();
+        }
+
+        private void open() {
+            if (address != NONE) {
+                slab = slab(address);
+                int chunk = (int) address;
+                position = chunk + HEADER;
+                end = chunk + slab.getInt(chunk + USED);
+            }
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && seen < count && address != NONE) {
+                if (position >= end) {
+                    address = slab.getLong((int) address + NEXT);
+                    open();
+                    continue;
+                }
+                Rating recordRating = RATINGS[slab.get(position++)];
+                int length = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = slab.get(position++);
+                    length |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                seen++;
+                if (rating == null || rating == recordRating) {
+                    if (scratch.length < length) {
+                        scratch = new byte[Math.max(length, scratch.length * 2)];
+                    }
+                    slab.get(position, scratch, 0, length);
+                    next = new Review(recordRating, new String(scratch, 0, length, StandardCharsets.UTF_8));
+                }
+                position += length;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Review next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Review review = next;
+            advance();
+            return review;
+        }
+    }
+
+    /**
+     * Chain of chunks of a product, changed by its writer only
+     */
+    private static class Chain {
+
+        private volatile long head = NONE;
+        private volatile long tail = NONE;
+    }
+
+}
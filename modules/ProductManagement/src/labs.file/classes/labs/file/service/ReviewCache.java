@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import labs.pm.data.Review;
+
+/**
+ * Least recently used cache of the stored reviews of products, bounded by
+ * an estimate of the heap bytes the cached reviews take.
+ *
+ * @author fabio
+ */
+class ReviewCache {
+
+    private final long budget;
+    private final Map<Integer, Cached> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long used;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ReviewCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Get the cached reviews of a product, loading them outside of the
+     * cache lock on a miss. Two threads missing the same product may both
+     * load it, the first one cached wins.
+     */
+    List<Review> get(int id, Supplier<List<Review>> loader) {
+        synchronized (this) {
+            Cached cached = cache.get(id);
+            if (cached != null) {
+                hits.increment();
+                return cached.reviews;
+            }
+        }
+        misses.increment();
+        List<Review> reviews = loader.get();
+        long bytes = estimateBytes(reviews);
+        if (bytes > budget) {
+            return reviews;
+        }
+        synchronized (this) {
+            Cached cached = cache.putIfAbsent(id, new Cached(reviews, bytes));
+            if (cached != null) {
+                return cached.reviews;
+            }
+            used += bytes;
+            Iterator<Cached> eldest = cache.values().iterator();
+            while (used > budget) {
+                used -= eldest.next().bytes;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+        return reviews;
+    }
+
+    /**
+     * Rough heap footprint of a review list: the array slot, the review,
+     * the string and its Latin-1 contents, or the compact arrays of a
+     * {@link ReviewList} whose comments are pooled
+     */
+    static long estimateBytes(List<Review> reviews) {
+        if (reviews instanceof ReviewList) {
+            return ((ReviewList) reviews).estimateBytes();
+        }
+        long bytes = 16;
+        for (Review review : reviews) {
+            bytes += 8 + 24 + 40 + review.getComments().length();
+        }
+        return bytes;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    synchronized long getUsedBytes() {
+        return used;
+    }
+
+    private static class Cached {
+
+        private final List<Review> reviews;
+        private final long bytes;
+
+        private Cached(List<Review> reviews, long bytes) {
+            this.reviews = reviews;
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Inverted index from the words of review comments to the products whose
+ * reviews use them, with how many reviews of each rating do.
+ *
+ * The postings of a word are compressed: product ids ascending as
+ * variable length deltas, each followed by a bit mask of the ratings
+ * present and the review count of each of them. Reviews of the product
+ * with the highest id so far extend the last posting; reviews of other
+ * products wait in a small buffer that is sorted and merged into the
+ * compressed postings once it grows past a fraction of them.
+ *
+ * Words are sequences of letters and digits, lower cased. A review counts
+ * once for each distinct word it has. So that a prefix query counts a
+ * review once however many of its words start with the prefix, the
+ * prefixes shared by several words of a review have postings of their
+ * own that count the review once for every such word beyond the first,
+ * and are taken off the sum.
+ *
+ * @author fabio
+ */
+class ReviewIndex {
+
+    private static final int RATINGS = Rating.values().length;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> words = new HashMap<>();
+    private final TreeMap<String, Postings> sortedWords = new TreeMap<>();
+    private final Map<String, Postings> sharedPrefixes = new HashMap<>();
+    private final ProductIndex<Postings[]> postingsOfComment = new ProductIndex<>();
+    private long reviews;
+
+    /**
+     * Split a text into its distinct lower case words
+     */
+    static String[] words(String text) {
+        Set<String> found = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); ) {
+            int c = (i < text.length()) ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                start = (start < 0) ? i : start;
+            } else if (start >= 0) {
+                found.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+            i += Character.charCount(c);
+        }
+        return found.toArray(new String[0]);
+    }
+
+    /**
+     * Get the prefixes shared by more than one of the distinct words of a
+     * review, each once for every word beyond the first that has it
+     */
+    static List<String> sharedPrefixes(String[] reviewWords) {
+        String[] sorted = reviewWords.clone();
+        Arrays.sort(sorted);
+        List<String> shared = new ArrayList<>();
+        // the words with a prefix are next to each other once sorted, k of
+        // them make k - 1 neighbours that have it in common
+        for (int i = 1; i < sorted.length; i++) {
+            String previous = sorted[i - 1];
+            String word = sorted[i];
+            int common = 0;
+            while (common < previous.length() && common < word.length()
+                    && previous.charAt(common) == word.charAt(common)) {
+                common++;
+            }
+            for (int length = 1; length <= common; length++) {
+                shared.add(word.substring(0, length));
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Index reviews of a product, a {@link ReviewList} splits each distinct
+     * pooled comment only once
+     */
+    void add(int id, List<Review> productReviews) {
+        try {
+            lock.writeLock().lock();
+            if (productReviews instanceof ReviewList) {
+                ReviewList list = (ReviewList) productReviews;
+                for (int i = 0; i < list.size(); i++) {
+                    int comment = list.getComment(i);
+                    Postings[] commentPostings = postingsOfComment.get(comment);
+                    if (commentPostings == null) {
+                        commentPostings = postingsOf(words(CommentPool.SHARED.get(comment)));
+                        postingsOfComment.put(comment, commentPostings);
+                    }
+                    add(id, list.getRating(i), commentPostings);
+                }
+            } else {
+                for (Review review : productReviews) {
+                    add(id, review.getRating(), postingsOf(words(review.getComments())));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the postings a review adds to: those of its words, then those of
+     * its shared prefixes
+     */
+    private Postings[] postingsOf(String[] reviewWords) {
+        List<String> shared = sharedPrefixes(reviewWords);
+        Postings[] postings = new Postings[reviewWords.length + shared.size()];
+        for (int i = 0; i < reviewWords.length; i++) {
+            postings[i] = words.get(reviewWords[i]);
+            if (postings[i] == null) {
+                postings[i] = new Postings();
+                words.put(reviewWords[i], postings[i]);
+                sortedWords.put(reviewWords[i], postings[i]);
+            }
+        }
+        for (int i = 0; i < shared.size(); i++) {
+            postings[reviewWords.length + i] = sharedPrefixes.computeIfAbsent(shared.get(i), prefix -> new Postings());
+        }
+        return postings;
+    }
+
+    private void add(int id, Rating rating, Postings[] reviewPostings) {
+        for (Postings postings : reviewPostings) {
+            postings.add(id, rating.ordinal());
+        }
+        reviews++;
+    }
+
+    /**
+     * Find the products with reviews using a word, or a word starting with
+     * a prefix
+     *
+     * @param from the lowest rating of the reviews to count
+     * @param to the highest rating of the reviews to count
+     * @return the products and the number of their matching reviews, by id
+     */
+    Hits find(String word, boolean prefix, Rating from, Rating to) {
+        try {
+            lock.readLock().lock();
+            if (!prefix) {
+                Postings postings = words.get(word);
+                return (postings == null) ? Hits.NONE : postings.find(from.ordinal(), to.ordinal());
+            }
+            HitCounter counter = new HitCounter();
+            for (Postings postings : sortedWords.subMap(word, true, word + Character.MAX_VALUE, false).values()) {
+                postings.count(from.ordinal(), to.ordinal(), 1, counter);
+            }
+            // the reviews counted more than once, never below one
+            Postings shared = sharedPrefixes.get(word);
+            if (shared != null) {
+                shared.count(from.ordinal(), to.ordinal(), -1, counter);
+            }
+            return counter.toHits();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find what {@link #find} finds by reading every review instead, for
+     * when there is no index
+     *
+     * @param entries the catalogue entries in id order
+     */
+    static Hits scan(Stream<ProductEntry> entries, Function<ProductEntry, List<Review>> reviewsOf,
+            String word, boolean prefix, Rating from, Rating to) {
+        Hits hits = new Hits(16);
+        entries.forEach(entry -> {
+            int count = 0;
+            for (Review review : reviewsOf.apply(entry)) {
+                int rating = review.getRating().ordinal();
+                if (rating >= from.ordinal() && rating <= to.ordinal()) {
+                    for (String reviewWord : words(review.getComments())) {
+                        if (prefix ? reviewWord.startsWith(word) : reviewWord.equals(word)) {
+                            count++;
+                            break;
+                        }
+                    }
+                }
+            }
+            hits.add(entry.getProduct().getId(), count);
+        });
+        return hits;
+    }
+
+    void addMetrics(Map<String, Number> metrics) {
+        try {
+            lock.readLock().lock();
+            long bytes = 0;
+            long postings = 0;
+            for (Map.Entry<String, Postings> word : words.entrySet()) {
+                // hash and tree nodes, the word and the postings
+                bytes += 40 + 40 + 40 + 2L * word.getKey().length() + word.getValue().estimateBytes();
+                postings += word.getValue().products;
+            }
+            for (Map.Entry<String, Postings> shared : sharedPrefixes.entrySet()) {
+                bytes += 40 + 40 + 2L * shared.getKey().length() + shared.getValue().estimateBytes();
+            }
+            bytes += postingsOfComment.values().mapToLong(commentPostings -> 16 + 12 + 4L * commentPostings.length).sum();
+            metrics.put("reviews.index.words", words.size());
+            metrics.put("reviews.index.reviews", reviews);
+            metrics.put("reviews.index.postings", postings);
+            metrics.put("reviews.index.bytes", bytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Postings of one word, changed under the index write lock only
+     */
+    private static final class Postings {
+
+        private byte[] data = new byte[8];
+        private int length;
+        private int products;
+        private long lastEncoded = Integer.MIN_VALUE;
+        private int tailId;
+        private int[] tail;
+        // out of order reviews as the id in the high and the rating in the
+        // low half
+        private long[] pending;
+        private int pendingSize;
+
+        void add(int id, int rating) {
+            if (tail != null && id == tailId) {
+                tail[rating]++;
+            } else if (id > ((tail != null) ? tailId : lastEncoded)) {
+                flushTail();
+                tailId = id;
+                tail = new int[RATINGS];
+                tail[rating]++;
+            } else {
+                if (pending == null) {
+                    pending = new long[16];
+                } else if (pendingSize == pending.length) {
+                    pending = Arrays.copyOf(pending, pendingSize * 2);
+                }
+                pending[pendingSize++] = ((long) id << 32) | rating;
+                if (pendingSize > 16 + products / 32) {
+                    merge();
+                }
+            }
+        }
+
+        private void flushTail() {
+            if (tail != null) {
+                encode(tailId, tail);
+                tail = null;
+            }
+        }
+
+        private void encode(int id, int[] counts) {
+            ensure(5 + 1 + 5 * RATINGS);
+            putVarLong(id - lastEncoded);
+            int mask = 0;
+            for (int r = 0; r < RATINGS; r++) {
+                mask |= (counts[r] > 0) ? 1 << r : 0;
+            }
+            data[length++] = (byte) mask;
+            for (int r = 0; r < RATINGS; r++) {
+                if (counts[r] > 0) {
+                    putVarLong(counts[r]);
+                }
+            }
+            lastEncoded = id;
+            products++;
+        }
+
+        private void ensure(int bytes) {
+            if (length + bytes > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + bytes, data.length + (data.length >> 1)));
+            }
+        }
+
+        private void putVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        /**
+         * Fold the buffered reviews into the compressed postings, merging
+         * the two in id order
+         */
+        private void merge() {
+            Arrays.sort(pending, 0, pendingSize);
+            Decoder decoder = new Decoder(data, length);
+            data = new byte[Math.max(8, length + length / 8)];
+            length = 0;
+            products = 0;
+            lastEncoded = Integer.MIN_VALUE;
+            int[] counts = new int[RATINGS];
+            boolean decoded = decoder.next();
+            int i = 0;
+            while (decoded || i < pendingSize) {
+                int id = (i < pendingSize && (!decoded || (int) (pending[i] >> 32) <= decoder.id))
+                        ? (int) (pending[i] >> 32) : decoder.id;
+                Arrays.fill(counts, 0);
+                if (decoded && decoder.id == id) {
+                    System.arraycopy(decoder.counts, 0, counts, 0, RATINGS);
+                    decoded = decoder.next();
+                }
+                for (; i < pendingSize && (int) (pending[i] >> 32) == id; i++) {
+                    counts[(int) pending[i]]++;
+                }
+                encode(id, counts);
+            }
+            pending = null;
+            pendingSize = 0;
+        }
+
+        /**
+         * @return the products with reviews rated between two rating
+         * ordinals, by id
+         */
+        Hits find(int from, int to) {
+            Hits hits = new Hits(products + 1);
+            Decoder decoder = new Decoder(data, length);
+            while (decoder.next()) {
+                hits.add(decoder.id, decoder.sum(from, to));
+            }
+            if (tail != null) {
+                hits.add(tailId, sum(tail, from, to));
+            }
+            if (pendingSize > 0) {
+                long[] sorted = Arrays.copyOf(pending, pendingSize);
+                Arrays.sort(sorted);
+                Hits buffered = new Hits(sorted.length);
+                for (int i = 0; i < sorted.length; ) {
+                    int id = (int) (sorted[i] >> 32);
+                    int count = 0;
+                    for (; i < sorted.length && (int) (sorted[i] >> 32) == id; i++) {
+                        int rating = (int) sorted[i];
+                        count += (rating >= from && rating <= to) ? 1 : 0;
+                    }
+                    buffered.add(id, count);
+                }
+                hits = hits.plus(buffered);
+            }
+            return hits;
+        }
+
+        /**
+         * Add the review counts of the products with reviews rated between
+         * two rating ordinals to a counter
+         *
+         * @param sign 1 to add the counts, -1 to take them off
+         */
+        void count(int from, int to, int sign, HitCounter counter) {
+            Decoder decoder = new Decoder(data, length);
+            while (decoder.next()) {
+                counter.add(decoder.id, sign * decoder.sum(from, to));
+            }
+            if (tail != null) {
+                counter.add(tailId, sign * sum(tail, from, to));
+            }
+            for (int i = 0; i < pendingSize; i++) {
+                int rating = (int) pending[i];
+                counter.add((int) (pending[i] >> 32), (rating >= from && rating <= to) ? sign : 0);
+            }
+        }
+
+        long estimateBytes() {
+            return 64 + 16 + data.length + ((tail != null) ? 16 + 4 * RATINGS : 0)
+                    + ((pending != null) ? 16 + 8L * pending.length : 0);
+        }
+    }
+
+    private static int sum(int[] counts, int from, int to) {
+        int sum = 0;
+        for (int r = from; r <= to; r++) {
+            sum += counts[r];
+        }
+        return sum;
+    }
+
+    /**
+     * Reads compressed postings one product at a time
+     */
+    private static final class Decoder {
+
+        private final byte[] data;
+        private final int length;
+        private int position;
+        private long last = Integer.MIN_VALUE;
+        private int id;
+        private final int[] counts = new int[RATINGS];
+
+        Decoder(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        boolean next() {
+            if (position == length) {
+                return false;
+            }
+            last += getVarLong();
+            id = (int) last;
+            int mask = data[position++];
+            for (int r = 0; r < RATINGS; r++) {
+                counts[r] = ((mask & (1 << r)) != 0) ? (int) getVarLong() : 0;
+            }
+            return true;
+        }
+
+        int sum(int from, int to) {
+            return ReviewIndex.sum(counts, from, to);
+        }
+
+        private long getVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sums the counts of the hits of many words per product, in a hash
+     * table of primitive ids and counts. Counts may be taken off a product
+     * already counted, as long as at least one is left.
+     */
+    private static final class HitCounter {
+
+        private int[] ids = new int[1024];
+        private int[] counts = new int[1024];
+        private int size;
+
+        void add(int id, int count) {
+            if (count == 0) {
+                return;
+            }
+            int mask = ids.length - 1;
+            int h = id * 0x9E3779B9;
+            int slot = (h ^ (h >>> 16)) & mask;
+            // a zero count marks a free slot, hits always count something
+            while (counts[slot] != 0 && ids[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            if (counts[slot] == 0) {
+                ids[slot] = id;
+                if (++size * 2 > ids.length) {
+                    counts[slot] = count;
+                    resize();
+                    return;
+                }
+            }
+            counts[slot] += count;
+        }
+
+        private void resize() {
+            int[] oldIds = ids;
+            int[] oldCounts = counts;
+            ids = new int[oldIds.length * 2];
+            counts = new int[oldCounts.length * 2];
+            size = 0;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldCounts[i] != 0) {
+                    add(oldIds[i], oldCounts[i]);
+                }
+            }
+        }
+
+        Hits toHits() {
+            long[] packed = new long[size];
+            int n = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (counts[i] != 0) {
+                    packed[n++] = ((long) ids[i] << 32) | counts[i];
+                }
+            }
+            Arrays.sort(packed);
+            Hits hits = new Hits(n);
+            for (long hit : packed) {
+                hits.add((int) (hit >> 32), (int) hit);
+            }
+            return hits;
+        }
+    }
+
+    /**
+     * Product ids ascending with a count of matching reviews each
+     */
+    static final class Hits {
+
+        static final Hits NONE = new Hits(0);
+
+        private int[] ids;
+        private int[] counts;
+        private int size;
+
+        private Hits(int capacity) {
+            ids = new int[capacity];
+            counts = new int[capacity];
+        }
+
+        private void add(int id, int count) {
+            if (count > 0) {
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2 + 1);
+                    counts = Arrays.copyOf(counts, size * 2 + 1);
+                }
+                ids[size] = id;
+                counts[size++] = count;
+            }
+        }
+
+        /**
+         * Merge with other hits, adding the counts of the products in both
+         */
+        private Hits plus(Hits other) {
+            if (other.size == 0) {
+                return this;
+            }
+            if (size == 0) {
+                return other;
+            }
+            Hits merged = new Hits(size + other.size);
+            int i = 0;
+            int j = 0;
+            while (i < size || j < other.size) {
+                if (j == other.size || (i < size && ids[i] < other.ids[j])) {
+                    merged.add(ids[i], counts[i++]);
+                } else if (i == size || other.ids[j] < ids[i]) {
+                    merged.add(other.ids[j], other.counts[j++]);
+                } else {
+                    merged.add(ids[i], counts[i++] + other.counts[j++]);
+                }
+            }
+            return merged;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int id(int index) {
+            return ids[index];
+        }
+
+        int count(int index) {
+            return counts[index];
+        }
+    }
+
+}
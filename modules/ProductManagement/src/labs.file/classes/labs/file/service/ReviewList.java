@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Immutable list of reviews. Appending returns a new list that shares the
+ * backing arrays whenever the next slot is still free, so older lists keep
+ * seeing their own prefix and appends stay O(1) amortized.
+ *
+ * Reviews are stored compactly, as a rating ordinal and the handle of the
+ * comment in the {@link CommentPool}; the {@link Review} objects are made
+ * when the list is read.
+ *
+ * Appends to lists of the same product must be serialized, the catalogue
+ * does so with the stripe write lock.
+ *
+ * @author fabio
+ */
+final class ReviewList extends AbstractList<Review> implements RandomAccess {
+
+    static final ReviewList EMPTY = new ReviewList(new byte[0], new int[0], 0);
+
+    private static final Rating[] RATINGS = Rating.values();
+
+    private final byte[] ratings;
+    private final int[] comments;
+    private final int size;
+
+    private ReviewList(byte[] ratings, int[] comments, int size) {
+        this.ratings = ratings;
+        this.comments = comments;
+        this.size = size;
+    }
+
+    static ReviewList of(Collection<Review> reviews) {
+        if (reviews instanceof ReviewList) {
+            return (ReviewList) reviews;
+        }
+        byte[] ratings = new byte[reviews.size()];
+        int[] comments = new int[reviews.size()];
+        int size = 0;
+        for (Review review : reviews) {
+            ratings[size] = (byte) review.getRating().ordinal();
+            comments[size++] = CommentPool.SHARED.intern(review.getComments());
+        }
+        return new ReviewList(ratings, comments, size);
+    }
+
+    ReviewList plus(Review review) {
+        return plus(review.getRating(), CommentPool.SHARED.intern(review.getComments()));
+    }
+
+    /**
+     * @param comment the handle of an interned comment
+     */
+    ReviewList plus(Rating rating, int comment) {
+        byte[] targetRatings = ratings;
+        int[] targetComments = comments;
+        // a zero handle marks a slot no list has taken yet
+        if (size == targetComments.length || targetComments[size] != 0) {
+            int capacity = Math.max(8, size + (size >> 1) + 1);
+            targetRatings = Arrays.copyOf(ratings, capacity);
+            targetComments = Arrays.copyOf(comments, capacity);
+        }
+        targetRatings[size] = (byte) rating.ordinal();
+        targetComments[size] = comment;
+        return new ReviewList(targetRatings, targetComments, size + 1);
+    }
+
+    @Override
+    public Review get(int index) {
+        return new Review(getRating(index), CommentPool.SHARED.get(getComment(index)));
+    }
+
+    Rating getRating(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return RATINGS[ratings[index]];
+    }
+
+    /**
+     * @return the handle of the comment in the {@link CommentPool}
+     */
+    int getComment(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return comments[index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rough heap footprint of the list and its arrays, without the pooled
+     * comments
+     */
+    long estimateBytes() {
+        return 24 + 16 + ratings.length + 16 + 4L * comments.length;
+    }
+
+    /**
+     * Rough heap footprint the same reviews took as {@link Review} objects:
+     * the array slot, the review, the string and its contents
+     */
+    long estimateObjectBytes() {
+        long bytes = 16;
+        for (int i = 0; i < size; i++) {
+            bytes += 8 + 24 + 40 + CommentPool.SHARED.length(comments[i]);
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+import labs.pm.data.Product;
+
+/**
+ * The secondary indexes of one catalogue stripe, a {@link RangeIndex} or
+ * a {@link BucketIndex} for every {@link IndexKey}. Immutable, it is
+ * published with the stripe it indexes.
+ *
+ * @author fabio
+ */
+final class SecondaryIndexes {
+
+    private static final IndexKey[] KEYS = IndexKey.values();
+
+    static final SecondaryIndexes EMPTY = empty();
+
+    private final RangeIndex[] sorted;
+    private final BucketIndex[] bucketed;
+
+    private SecondaryIndexes(RangeIndex[] sorted, BucketIndex[] bucketed) {
+        this.sorted = sorted;
+        this.bucketed = bucketed;
+    }
+
+    private static SecondaryIndexes empty() {
+        RangeIndex[] sorted = new RangeIndex[KEYS.length];
+        BucketIndex[] bucketed = new BucketIndex[KEYS.length];
+        for (IndexKey key : KEYS) {
+            if (key.getBuckets() == 0) {
+                sorted[key.ordinal()] = RangeIndex.EMPTY;
+            } else {
+                bucketed[key.ordinal()] = BucketIndex.empty(key.getBuckets());
+            }
+        }
+        return new SecondaryIndexes(sorted, bucketed);
+    }
+
+    static SecondaryIndexes of(List<Product> products) {
+        RangeIndex[] sorted = new RangeIndex[KEYS.length];
+        BucketIndex[] bucketed = new BucketIndex[KEYS.length];
+        long[] keys = new long[products.size()];
+        int[] ids = new int[products.size()];
+        for (IndexKey key : KEYS) {
+            int size = 0;
+            for (Product product : products) {
+                if (key.indexes(product)) {
+                    keys[size] = key.of(product);
+                    ids[size++] = product.getId();
+                }
+            }
+            if (key.getBuckets() == 0) {
+                sorted[key.ordinal()] = RangeIndex.of(keys, ids, size);
+            } else {
+                bucketed[key.ordinal()] = BucketIndex.of(keys, ids, size, key.getBuckets());
+            }
+        }
+        return new SecondaryIndexes(sorted, bucketed);
+    }
+
+    /**
+     * Visit the ids whose key is between two values, both included, in key
+     * then id order
+     */
+    void forEach(IndexKey key, long from, long to, IntConsumer action) {
+        BucketIndex buckets = bucketed[key.ordinal()];
+        if (buckets == null) {
+            RangeIndex index = sorted[key.ordinal()];
+            int end = index.upperBound(to);
+            for (int i = index.lowerBound(from); i < end; i++) {
+                action.accept(index.id(i));
+            }
+        } else {
+            int last = (int) Math.min(to, buckets.getBuckets() - 1);
+            for (int b = (int) Math.max(from, 0); b <= last; b++) {
+                for (int id : buckets.ids(b)) {
+                    action.accept(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get how many ids have a key between two values, both included
+     */
+    int count(IndexKey key, long from, long to) {
+        BucketIndex buckets = bucketed[key.ordinal()];
+        if (buckets == null) {
+            RangeIndex index = sorted[key.ordinal()];
+            return Math.max(0, index.upperBound(to) - index.lowerBound(from));
+        }
+        int count = 0;
+        int last = (int) Math.min(to, buckets.getBuckets() - 1);
+        for (int b = (int) Math.max(from, 0); b <= last; b++) {
+            count += buckets.ids(b).length;
+        }
+        return count;
+    }
+
+    /**
+     * Index a new version of a product, copying only the indexes whose key
+     * changed
+     *
+     * @param previous the product as indexed so far, null if it is new
+     */
+    SecondaryIndexes with(Product previous, Product product) {
+        RangeIndex[] changedSorted = sorted;
+        BucketIndex[] changedBuckets = bucketed;
+        for (IndexKey key : KEYS) {
+            boolean had = previous != null && key.indexes(previous);
+            boolean has = key.indexes(product);
+            if (had && has && key.of(previous) == key.of(product)) {
+                continue;
+            }
+            int k = key.ordinal();
+            if (key.getBuckets() == 0) {
+                RangeIndex index = sorted[k];
+                if (had) {
+                    index = index.without(key.of(previous), previous.getId());
+                }
+                if (has) {
+                    index = index.with(key.of(product), product.getId());
+                }
+                changedSorted = (changedSorted == sorted) ? sorted.clone() : changedSorted;
+                changedSorted[k] = index;
+            } else {
+                BucketIndex index = bucketed[k];
+                if (had) {
+                    index = index.without((int) key.of(previous), previous.getId());
+                }
+                if (has) {
+                    index = index.with((int) key.of(product), product.getId());
+                }
+                changedBuckets = (changedBuckets == bucketed) ? bucketed.clone() : changedBuckets;
+                changedBuckets[k] = index;
+            }
+        }
+        return (changedSorted == sorted && changedBuckets == bucketed)
+                ? this : new SecondaryIndexes(changedSorted, changedBuckets);
+    }
+
+    long estimateBytes() {
+        long bytes = 0;
+        for (int k = 0; k < KEYS.length; k++) {
+            bytes += (bucketed[k] == null) ? sorted[k].estimateBytes() : bucketed[k].estimateBytes();
+        }
+        return bytes;
+    }
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * Storage engine keeping all products and reviews in a few append only
+ * segment files instead of a pair of files per product.
+ *
+ * Every record is framed as its length, a type byte and a
+ * {@link RecordCodec} payload. Review records also carry the position of
+ * the previous review of the same product, so the reviews of a product
+ * form a chain that the in memory offset index points into.
+ *
+ * Importing the data files is marked by a file in the segment folder
+ * until the imported records are durable, so the segments of an import
+ * that did not finish are discarded rather than read as a store.
+ *
+ * @author fabio
+ */
+class SegmentStore {
+
+    private static final Logger logger = Logger.getLogger(SegmentStore.class.getName());
+
+    private static final byte PRODUCT = 'P';
+    private static final byte REVIEW = 'R';
+    private static final int HEADER = Integer.BYTES + 1;
+    private static final long NONE = -1;
+    private static final String IMPORT_MARKER = "import.pending";
+
+    private final Path folder;
+    private final String fileName;
+    private final long segmentSize;
+
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final ProductIndex<Locator> locators = new ProductIndex<>();
+    private long activeSize;
+    private boolean importing;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    SegmentStore(Path folder, String fileName, long segmentSize) {
+        this.folder = folder;
+        this.fileName = fileName;
+        this.segmentSize = segmentSize;
+    }
+
+    private Path segmentFile(int segment) {
+        return folder.resolve(MessageFormat.format(fileName, String.valueOf(segment)));
+    }
+
+    private static long position(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    synchronized boolean isEmpty() {
+        return locators.size() == 0;
+    }
+
+    /**
+     * Open the existing segments and replay them in order to rebuild the
+     * offset index, handing every product and review to the consumers. A
+     * torn record at the end of the last segment is cut off; an unreadable
+     * record in an earlier one fails the open, as the segment was complete
+     * when the next one was started.
+     */
+    synchronized void open(Consumer<Product> productConsumer, ObjIntConsumer<Review> reviewConsumer) throws IOException {
+        Files.createDirectories(folder);
+        Path marker = folder.resolve(IMPORT_MARKER);
+        if (Files.exists(marker)) {
+            logger.log(Level.WARNING, "Discarding the segments of an import that did not finish");
+            int segment = 0;
+            while (Files.deleteIfExists(segmentFile(segment))) {
+                segment++;
+            }
+            Files.delete(marker);
+        }
+        for (int segment = 0; Files.exists(segmentFile(segment)); segment++) {
+            FileChannel channel = FileChannel.open(segmentFile(segment),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(channel);
+            boolean last = Files.notExists(segmentFile(segment + 1));
+            activeSize = scan(segment, channel, last, productConsumer, reviewConsumer);
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+    }
+
+    /**
+     * @param last whether this is the active segment, the only one whose
+     * tail may be torn
+     */
+    private long scan(int segment, FileChannel channel, boolean last,
+            Consumer<Product> productConsumer, ObjIntConsumer<Review> reviewConsumer) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int offset = 0;
+        while (offset + HEADER <= size) {
+            int length = data.getInt(offset);
+            if (length < 1 || offset + Integer.BYTES + length > size) {
+                break;
+            }
+            ByteBuffer record = data.slice(offset + Integer.BYTES, length);
+            try {
+                byte type = record.get();
+                if (type == PRODUCT) {
+                    Product product = RecordCodec.getProduct(record);
+                    locators.put(product.getId(), new Locator());
+                    productConsumer.accept(product);
+                } else if (type == REVIEW) {
+                    int id = RecordCodec.getVarInt(record);
+                    RecordCodec.getVarLong(record);
+                    Review review = RecordCodec.getReview(record);
+                    Locator locator = locators.get(id);
+                    if (locator != null) {
+                        locator.lastReview = position(segment, offset);
+                        locator.reviews++;
+                        reviewConsumer.accept(review, id);
+                    }
+                } else {
+                    break;
+                }
+            } catch (RuntimeException ex) {
+                break;
+            }
+            offset += Integer.BYTES + length;
+        }
+        if (offset < size && !last) {
+            throw new IOException("Segment " + segment + " is damaged at " + offset + " of " + size
+                    + " bytes, the records after it cannot be read");
+        }
+        if (offset < size) {
+            logger.log(Level.WARNING, "Truncating segment " + segment + " at " + offset + " of " + size + " bytes");
+            channel.truncate(offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Append a product, durable when this returns unless the store is
+     * being imported into
+     */
+    void append(Product product) throws IOException {
+        FileChannel written;
+        synchronized (this) {
+            ByteBuffer record = record(PRODUCT, RecordCodec.maxSize(product));
+            RecordCodec.putProduct(record, product);
+            write(record);
+            if (locators.get(product.getId()) == null) {
+                locators.put(product.getId(), new Locator());
+            }
+            written = importing ? null : segments.get(segments.size() - 1);
+        }
+        forceOutside(written);
+    }
+
+    /**
+     * Append a review, durable when this returns unless the store is
+     * being imported into
+     */
+    void append(int id, Review review) throws IOException {
+        FileChannel written;
+        synchronized (this) {
+            Locator locator = locators.get(id);
+            if (locator == null) {
+                throw new IOException("Product " + id + " is not stored");
+            }
+            ByteBuffer record = record(REVIEW, 5 + 10 + RecordCodec.maxSize(review));
+            RecordCodec.putVarInt(record, id);
+            RecordCodec.putVarLong(record, locator.lastReview + 1);
+            RecordCodec.putReview(record, review);
+            locator.lastReview = write(record);
+            locator.reviews++;
+            written = importing ? null : segments.get(segments.size() - 1);
+        }
+        forceOutside(written);
+    }
+
+    /**
+     * Force a segment without holding the store, so writers of other
+     * products keep appending and concurrent forces share the device
+     * flush. A segment rolled past in between was forced by the roll.
+     */
+    private static void forceOutside(FileChannel segment) throws IOException {
+        if (segment != null) {
+            segment.force(false);
+        }
+    }
+
+    private ByteBuffer record(byte type, int maxSize) {
+        if (buffer.capacity() < HEADER + maxSize) {
+            buffer = ByteBuffer.allocate(HEADER + maxSize);
+        }
+        buffer.clear();
+        buffer.position(Integer.BYTES);
+        buffer.put(type);
+        return buffer;
+    }
+
+    private long write(ByteBuffer record) throws IOException {
+        record.putInt(0, record.position() - Integer.BYTES);
+        record.flip();
+        if (activeSize > 0 && activeSize + record.remaining() > segmentSize) {
+            roll();
+        }
+        int segment = segments.size() - 1;
+        FileChannel channel = segments.get(segment);
+        long offset = activeSize;
+        while (record.hasRemaining()) {
+            activeSize += channel.write(record, activeSize);
+        }
+        return position(segment, offset);
+    }
+
+    private void roll() throws IOException {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).force(false);
+        }
+        segments.add(FileChannel.open(segmentFile(segments.size()),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        activeSize = 0;
+    }
+
+    /**
+     * Mark the store as being imported into, until {@link #endImport()}.
+     * Appends are not forced one by one meanwhile.
+     */
+    synchronized void beginImport() throws IOException {
+        try (FileChannel marker = FileChannel.open(folder.resolve(IMPORT_MARKER),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            marker.force(true);
+        }
+        importing = true;
+    }
+
+    /**
+     * Make the imported records durable and remove the import marker
+     */
+    synchronized void endImport() throws IOException {
+        force();
+        Files.delete(folder.resolve(IMPORT_MARKER));
+        importing = false;
+    }
+
+    /**
+     * Flush appended records to the storage device
+     */
+    synchronized void force() throws IOException {
+        segments.get(segments.size() - 1).force(false);
+    }
+
+    /**
+     * Read the oldest reviews of a product by walking its review chain
+     *
+     * @param id the product id
+     * @param count how many of the oldest reviews to return
+     * @return the reviews in the order they were appended
+     */
+    List<Review> readReviews(int id, int count) throws IOException {
+        long next;
+        int skip;
+        FileChannel[] channels;
+        synchronized (this) {
+            Locator locator = locators.get(id);
+            if (locator == null) {
+                return new ArrayList<>();
+            }
+            next = locator.lastReview;
+            skip = Math.max(locator.reviews - count, 0);
+            channels = segments.toArray(new FileChannel[0]);
+        }
+        List<Review> reviews = new ArrayList<>(count);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (next != NONE && reviews.size() < count) {
+            FileChannel channel = channels[(int) (next >>> 32)];
+            long offset = next & 0xFFFFFFFFL;
+            header.clear();
+            read(channel, header, offset);
+            ByteBuffer record = ByteBuffer.allocate(header.getInt(0) - 1);
+            read(channel, record, offset + HEADER);
+            record.flip();
+            RecordCodec.getVarInt(record);
+            next = RecordCodec.getVarLong(record) - 1;
+            if (skip > 0) {
+                skip--;
+            } else {
+                reviews.add(RecordCodec.getReview(record));
+            }
+        }
+        Collections.reverse(reviews);
+        return reviews;
+    }
+
+    private static void read(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    private static class Locator {
+
+        private long lastReview = NONE;
+        private int reviews;
+    }
+
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Binary snapshot of the catalogue.
+ *
+ * The file starts with a magic number, the schema version, whether it is
+ * a full or a delta snapshot, its sequence number and the write ahead log
+ * generation it continues with. The products follow in blocks of about
+ * {@link #BLOCK_SIZE} bytes, each product prefixed with its length and
+ * holding the product, how many of its first reviews are also in the
+ * review data files, the number of reviews and the reviews, all in
+ * {@link RecordCodec} encoding. A delta snapshot only holds the products
+ * changed since the previous snapshot.
+ *
+ * The file ends with a manifest giving the offset, length, number of
+ * products and CRC32C of every block, protected by its own CRC32C, and a
+ * fixed size footer pointing at the manifest. A snapshot that was torn or
+ * damaged is rejected as a whole, and the blocks of a valid one are
+ * decoded in parallel.
+ *
+ * Writing streams block by block, so the snapshot is never held in memory
+ * as a whole.
+ *
+ * @author fabio
+ */
+final class SnapshotFile {
+
+    static final int MAGIC = 0x504D534E;
+    static final short VERSION = 5;
+
+    static final byte FULL = 'F';
+    static final byte DELTA = 'D';
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final int FOOTER_MAGIC = 0x4E534D50;
+    private static final int HEADER = Integer.BYTES + Short.BYTES + 1 + Long.BYTES + Integer.BYTES;
+    private static final int FOOTER = Long.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int BLOCK_ENTRY = Long.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Write a snapshot
+     *
+     * @param file the file to create or replace
+     * @param kind {@link #FULL} or {@link #DELTA}
+     * @param sequence the sequence number of the snapshot
+     * @param generation the first write ahead log generation not covered
+     * by the snapshot
+     * @param entries the products to write
+     * @param reviews gives the complete review list of a product
+     * @param stored gives how many of the first reviews of a product are
+     * also in the review data files
+     * @return the number of bytes written
+     */
+    static long write(Path file, byte kind, long sequence, int generation, Iterator<ProductEntry> entries,
+            Function<ProductEntry, List<Review>> reviews, ToIntFunction<ProductEntry> stored) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC);
+            header.putShort(VERSION);
+            header.put(kind);
+            header.putLong(sequence);
+            header.putInt(generation);
+            long offset = write(channel, header.flip());
+
+            BlockWriter blocks = new BlockWriter(channel, offset);
+            ByteBuffer record = ByteBuffer.allocate(4 * 1024);
+            while (entries.hasNext()) {
+                ProductEntry entry = entries.next();
+                Product product = entry.getProduct();
+                List<Review> list = reviews.apply(entry);
+                int maxSize = RecordCodec.maxSize(product) + 5 + RecordCodec.maxSize(list);
+                if (record.capacity() < maxSize) {
+                    record = ByteBuffer.allocate(Math.max(maxSize, record.capacity() * 2));
+                }
+                record.clear();
+                RecordCodec.putProduct(record, product);
+                RecordCodec.putVarInt(record, stored.applyAsInt(entry));
+                RecordCodec.putReviews(record, list);
+                blocks.add(record.flip());
+            }
+            blocks.finishBlock();
+
+            ByteBuffer manifest = ByteBuffer.allocate(Integer.BYTES + blocks.manifest.size() * BLOCK_ENTRY
+                    + Integer.BYTES + FOOTER);
+            manifest.putInt(blocks.manifest.size());
+            for (Block block : blocks.manifest) {
+                manifest.putLong(block.offset);
+                manifest.putInt(block.length);
+                manifest.putInt(block.entries);
+                manifest.putInt(block.crc);
+            }
+            manifest.putInt(crc(manifest.duplicate().flip()));
+            manifest.putLong(blocks.offset);
+            manifest.putLong(sequence);
+            manifest.putLong(blocks.entries);
+            manifest.putInt(FOOTER_MAGIC);
+            long size = blocks.offset + write(channel, manifest.flip());
+            channel.force(false);
+            return size;
+        }
+    }
+
+    private static long write(FileChannel channel, ByteBuffer data) throws IOException {
+        long written = 0;
+        while (data.hasRemaining()) {
+            written += channel.write(data);
+        }
+        return written;
+    }
+
+    private static int crc(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Read a complete snapshot, checking the manifest and every block
+     *
+     * @param arena where to copy the reviews to, null to hold them in the
+     * entries
+     * @param lazy whether to leave the reviews that are also in the review
+     * data files there, only counting their ratings
+     * @return the products with their reviews, in the order written
+     * @throws IOException when the file is not a snapshot, has an unknown
+     * version, is truncated or fails a checksum
+     */
+    static List<ProductEntry> read(Path file, ReviewArena arena, boolean lazy) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = readHeader(file, channel);
+            List<Block> blocks = readManifest(file, channel, header);
+            try {
+                return IntStream.range(0, blocks.size())
+                        .parallel()
+                        .mapToObj(i -> readBlock(file, channel, blocks.get(i), arena, lazy))
+                        .flatMap(List::stream)
+                        .collect(Collectors.toList());
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    private static List<Block> readManifest(Path file, FileChannel channel, Header header) throws IOException {
+        long size = channel.size();
+        if (size < HEADER + Integer.BYTES + Integer.BYTES + FOOTER) {
+            throw new IOException("Snapshot " + file + " is truncated");
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER);
+        read(channel, footer, size - FOOTER);
+        footer.flip();
+        long manifestOffset = footer.getLong();
+        long sequence = footer.getLong();
+        long entries = footer.getLong();
+        if (footer.getInt() != FOOTER_MAGIC || sequence != header.sequence
+                || manifestOffset < HEADER || manifestOffset > size - FOOTER - 2 * Integer.BYTES) {
+            throw new IOException("Snapshot " + file + " has no valid footer");
+        }
+        ByteBuffer manifest = ByteBuffer.allocate((int) (size - FOOTER - manifestOffset));
+        read(channel, manifest, manifestOffset);
+        manifest.flip();
+        int expected = manifest.getInt(manifest.limit() - Integer.BYTES);
+        if (crc(manifest.slice(0, manifest.limit() - Integer.BYTES)) != expected) {
+            throw new IOException("Snapshot " + file + " has a damaged manifest");
+        }
+        int count = manifest.getInt();
+        if (count < 0 || manifest.remaining() != (long) count * BLOCK_ENTRY + Integer.BYTES) {
+            throw new IOException("Snapshot " + file + " has a damaged manifest");
+        }
+        List<Block> blocks = new ArrayList<>(count);
+        long offset = HEADER;
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            Block block = new Block(manifest.getLong(), manifest.getInt(), manifest.getInt(), manifest.getInt());
+            if (block.offset != offset || block.length < 0 || block.entries < 0) {
+                throw new IOException("Snapshot " + file + " has a damaged manifest");
+            }
+            offset += block.length;
+            total += block.entries;
+            blocks.add(block);
+        }
+        if (offset != manifestOffset || total != entries) {
+            throw new IOException("Snapshot " + file + " has a damaged manifest");
+        }
+        return blocks;
+    }
+
+    private static List<ProductEntry> readBlock(Path file, FileChannel channel, Block block, ReviewArena arena,
+            boolean lazy) {
+        try {
+            ByteBuffer data = ByteBuffer.allocate(block.length);
+            read(channel, data, block.offset);
+            data.flip();
+            if (crc(data.duplicate()) != block.crc) {
+                throw new IOException("Snapshot " + file + " has a damaged block at " + block.offset);
+            }
+            List<ProductEntry> entries = new ArrayList<>(block.entries);
+            try {
+                for (int i = 0; i < block.entries; i++) {
+                    int length = RecordCodec.getVarInt(data);
+                    entries.add(readEntry(data.slice(data.position(), length), arena, lazy));
+                    data.position(data.position() + length);
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException("Snapshot " + file + " has a corrupt block at " + block.offset, ex);
+            }
+            return entries;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static ProductEntry readEntry(ByteBuffer record, ReviewArena arena, boolean lazy) {
+        Product product = RecordCodec.getProduct(record);
+        int stored = RecordCodec.getVarInt(record);
+        if (arena == null) {
+            if (!lazy) {
+                return new ProductEntry(product, RecordCodec.getReviews(record));
+            }
+            // the reviews in the data files are loaded again on demand
+            int[] histogram = new int[Rating.values().length];
+            ReviewList added = RecordCodec.getReviews(record, stored, histogram);
+            return new ProductEntry(product, added, RatingSummary.of(histogram), stored);
+        }
+        arena.clear(product.getId());
+        RatingSummary ratings = RecordCodec.copyReviews(record, arena, product.getId());
+        return new ProductEntry(product, ReviewList.EMPTY, ratings, ratings.getCount());
+    }
+
+    private static void read(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+    }
+
+    /**
+     * Read only the header of a snapshot
+     */
+    static Header readHeader(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(file, channel);
+        }
+    }
+
+    private static Header readHeader(Path file, FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+        header.flip();
+        if (header.remaining() < Integer.BYTES + Short.BYTES || header.getInt() != MAGIC) {
+            throw new IOException(file + " is not a product snapshot");
+        }
+        short version = header.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + " in " + file);
+        }
+        if (header.remaining() < 1 + Long.BYTES + Integer.BYTES) {
+            throw new IOException("Snapshot " + file + " is truncated");
+        }
+        return new Header(file, header.get(), header.getLong(), header.getInt());
+    }
+
+    static final class Header {
+
+        private final Path file;
+        private final byte kind;
+        private final long sequence;
+        private final int generation;
+
+        private Header(Path file, byte kind, long sequence, int generation) {
+            this.file = file;
+            this.kind = kind;
+            this.sequence = sequence;
+            this.generation = generation;
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        boolean isFull() {
+            return kind == FULL;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * The first write ahead log generation not covered by the snapshot
+         */
+        int getGeneration() {
+            return generation;
+        }
+    }
+
+    private static class Block {
+
+        private final long offset;
+        private final int length;
+        private final int entries;
+        private final int crc;
+
+        private Block(long offset, int length, int entries, int crc) {
+            this.offset = offset;
+            this.length = length;
+            this.entries = entries;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * Collects records into blocks and writes each full block with its
+     * checksum
+     */
+    private static class BlockWriter {
+
+        private final FileChannel channel;
+        private final List<Block> manifest = new ArrayList<>();
+        private ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private long offset;
+        private int blockEntries;
+        private long entries;
+
+        private BlockWriter(FileChannel channel, long offset) {
+            this.channel = channel;
+            this.offset = offset;
+        }
+
+        private void add(ByteBuffer record) throws IOException {
+            int size = 5 + record.remaining();
+            if (blockEntries > 0 && block.remaining() < size) {
+                finishBlock();
+            }
+            if (block.remaining() < size) {
+                block = ByteBuffer.allocate(size);
+            }
+            RecordCodec.putVarInt(block, record.remaining());
+            block.put(record);
+            blockEntries++;
+            entries++;
+        }
+
+        private void finishBlock() throws IOException {
+            if (blockEntries == 0) {
+                return;
+            }
+            block.flip();
+            int length = block.remaining();
+            manifest.add(new Block(offset, length, blockEntries, crc(block.duplicate())));
+            offset += write(channel, block);
+            if (block.capacity() > BLOCK_SIZE) {
+                block = ByteBuffer.allocate(BLOCK_SIZE);
+            } else {
+                block.clear();
+            }
+            blockEntries = 0;
+        }
+    }
+
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.Review;
+
+/**
+ * Writes snapshots of the catalogue on a background thread while writes
+ * keep flowing.
+ *
+ * Writers are only held back while the write ahead log rolls to a new
+ * generation and the current {@link CatalogueVersion} is pinned. That
+ * version is immutable, so it is written out afterwards without any lock.
+ * Snapshots are taken every interval and after a number of writes,
+ * whichever comes first.
+ *
+ * Writers mark the products they change as dirty, and most snapshots are
+ * deltas holding only the products changed since the previous one. Every
+ * few snapshots a full one consolidates the chain into a new base. Only
+ * the newest chains are kept along with the log generations they need.
+ *
+ * @author fabio
+ */
+class Snapshotter {
+
+    private static final Logger logger = Logger.getLogger(Snapshotter.class.getName());
+
+    private final Catalogue products;
+    private final WriteAheadLog wal;
+    private final Function<ProductEntry, List<Review>> reviews;
+    private final ReviewArena arena;
+    private final boolean lazy;
+    private final Path folder;
+    private final String fileName;
+    private final int retain;
+    private final int fullEvery;
+    private final long changeTrigger;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean triggered = new AtomicBoolean();
+    private final AtomicLong changes = new AtomicLong();
+    private volatile Set<Integer> dirty = ConcurrentHashMap.newKeySet();
+
+    private boolean initialized;
+    private long sequence;
+    private boolean baseCurrent;
+    private int deltas;
+
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long lastDuration;
+    private volatile long lastBytes;
+    private volatile long lastPause;
+    private final LongAdder idleWrites = new LongAdder();
+    private final LongAdder idleNanos = new LongAdder();
+    private final LongAdder busyWrites = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+
+    /**
+     * @param products the catalogue to snapshot
+     * @param wal the write ahead log to roll, null when there is none
+     * @param reviews gives the complete review list of a product
+     * @param arena where restored reviews are kept, null to keep them in
+     * the catalogue entries
+     * @param lazy whether the reviews in the review data files are left
+     * there rather than held in the catalogue entries
+     * @param folder where the snapshots are written
+     * @param fileName pattern of the snapshot file names, {0} is the
+     * sequence number
+     * @param retain how many chains of a full snapshot and its deltas to
+     * keep
+     * @param fullEvery take a full snapshot every this many snapshots
+     * @param changeTrigger number of writes that trigger a snapshot, 0 for
+     * none
+     */
+    Snapshotter(Catalogue products, WriteAheadLog wal, Function<ProductEntry, List<Review>> reviews, ReviewArena arena,
+            boolean lazy, Path folder, String fileName, int retain, int fullEvery, long changeTrigger) {
+        this.products = products;
+        this.wal = wal;
+        this.reviews = reviews;
+        this.arena = arena;
+        this.lazy = lazy;
+        this.folder = folder;
+        this.fileName = fileName;
+        this.retain = Math.max(retain, 1);
+        this.fullEvery = fullEvery;
+        this.changeTrigger = changeTrigger;
+    }
+
+    /**
+     * Start taking snapshots periodically
+     *
+     * @param interval seconds between snapshots, 0 for none
+     */
+    void start(long interval) {
+        if (interval > 0) {
+            executor.scheduleWithFixedDelay(this::runIfIdle, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Mark a product as changed since the last snapshot. Caller must hold
+     * the write lock of the id.
+     */
+    void markDirty(int id) {
+        dirty.add(id);
+    }
+
+    /**
+     * Account a completed write, taking a snapshot in the background when
+     * enough writes happened since the last one
+     *
+     * @param nanos how long the write took
+     */
+    void recordWrite(long nanos) {
+        if (running.get()) {
+            busyWrites.increment();
+            busyNanos.add(nanos);
+        } else {
+            idleWrites.increment();
+            idleNanos.add(nanos);
+        }
+        if (changeTrigger > 0 && changes.incrementAndGet() >= changeTrigger && triggered.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    runIfIdle();
+                } finally {
+                    triggered.set(false);
+                }
+            });
+        }
+    }
+
+    private void runIfIdle() {
+        if (running.compareAndSet(false, true)) {
+            try {
+                snapshot();
+            } catch (IOException | RuntimeException ex) {
+                failures.increment();
+                logger.log(Level.SEVERE, "Error taking snapshot " + ex.getMessage(), ex);
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+
+    /**
+     * Take a snapshot on the calling thread, a delta unless a full one is
+     * due
+     *
+     * @return the snapshot file
+     */
+    synchronized Path snapshot() throws IOException {
+        if (!initialized) {
+            List<SnapshotFile.Header> headers = headers(snapshotFiles());
+            sequence = headers.isEmpty() ? 0 : headers.get(headers.size() - 1).getSequence();
+            initialized = true;
+        }
+        long start = System.nanoTime();
+        CatalogueVersion version;
+        Set<Integer> changed;
+        int generation = 0;
+        products.lockAll();
+        try {
+            if (wal != null) {
+                generation = wal.roll();
+            }
+            version = products.snapshot();
+            changed = dirty;
+            dirty = ConcurrentHashMap.newKeySet();
+        } finally {
+            products.unlockAll();
+        }
+        long pinned = System.nanoTime();
+        changes.set(0);
+
+        boolean full = !baseCurrent || deltas + 1 >= fullEvery;
+        Files.createDirectories(folder);
+        long next = sequence + 1;
+        Path file = snapshotFile(next);
+        Path part = file.resolveSibling(file.getFileName() + ".part");
+        long bytes;
+        try {
+            Iterator<ProductEntry> entries = full
+                    ? version.values().iterator()
+                    : changed.stream().map(version::get).filter(Objects::nonNull).iterator();
+            bytes = SnapshotFile.write(part, full ? SnapshotFile.FULL : SnapshotFile.DELTA,
+                    next, generation, entries, reviews, lazy ? ProductEntry::getStoredReviews : entry -> 0);
+            Files.move(part, file, StandardCopyOption.ATOMIC_MOVE);
+            sequence = next;
+        } catch (IOException | RuntimeException ex) {
+            // the next snapshot has to cover these products again
+            dirty.addAll(changed);
+            if (ex instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex).getCause();
+            }
+            throw ex;
+        }
+        if (full) {
+            baseCurrent = true;
+            deltas = 0;
+        } else {
+            deltas++;
+        }
+        prune();
+
+        long end = System.nanoTime();
+        snapshots.increment();
+        lastPause = pinned - start;
+        lastDuration = end - start;
+        lastBytes = bytes;
+        logger.log(Level.INFO, MessageFormat.format(
+                "{0} snapshot {1} of version {2}: {3} products, {4} bytes in {5} ms, writers paused {6} us",
+                full ? "Full" : "Delta", file.getFileName(), version.getVersion(),
+                full ? version.size() : changed.size(), bytes,
+                (end - start) / 1_000_000, (pinned - start) / 1_000
+        ));
+        return file;
+    }
+
+    /**
+     * Load the newest valid full snapshot and the valid deltas taken after
+     * it into the catalogue. A damaged snapshot ends the chain, and the
+     * snapshots after it are set aside since no later snapshot can build
+     * on them.
+     *
+     * @return the first log generation the snapshots do not cover, -1 when
+     * there are no snapshots
+     * @throws IOException when there are snapshots but none of them is
+     * valid, since the log generations before them may be gone already
+     */
+    synchronized int restore() throws IOException {
+        List<Path> files = snapshotFiles();
+        List<SnapshotFile.Header> headers = headers(files);
+        for (int base = headers.size() - 1; base >= 0; base--) {
+            if (!headers.get(base).isFull()) {
+                continue;
+            }
+            Map<Integer, ProductEntry> entries = new HashMap<>();
+            if (!restore(headers.get(base), entries)) {
+                continue;
+            }
+            int last = base;
+            while (last + 1 < headers.size()
+                    && headers.get(last + 1).getSequence() == headers.get(last).getSequence() + 1
+                    && restore(headers.get(last + 1), entries)) {
+                last++;
+            }
+            for (SnapshotFile.Header newer : headers.subList(last + 1, headers.size())) {
+                Path file = newer.getFile();
+                logger.log(Level.WARNING, "Setting aside snapshot " + file.getFileName());
+                Files.move(file, file.resolveSibling(file.getFileName() + ".invalid"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            products.replace(entries.values().stream());
+            sequence = headers.get(last).getSequence();
+            initialized = true;
+            baseCurrent = true;
+            deltas = last - base;
+            return headers.get(last).getGeneration();
+        }
+        if (!files.isEmpty()) {
+            throw new IOException("None of the " + files.size() + " snapshots in " + folder
+                    + " is valid, the data files and the log kept cannot rebuild the catalogue");
+        }
+        return -1;
+    }
+
+    private boolean restore(SnapshotFile.Header header, Map<Integer, ProductEntry> entries) {
+        long start = System.nanoTime();
+        List<ProductEntry> restored;
+        try {
+            restored = SnapshotFile.read(header.getFile(), arena, lazy);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Invalid snapshot " + ex.getMessage());
+            return false;
+        }
+        for (ProductEntry entry : restored) {
+            entries.put(entry.getProduct().getId(), entry);
+        }
+        logger.log(Level.INFO, MessageFormat.format("Decoded snapshot {0}: {1} products in {2} ms",
+                header.getFile().getFileName(), restored.size(), (System.nanoTime() - start) / 1_000_000));
+        return true;
+    }
+
+    /**
+     * Delete the chains beyond the ones to keep and the log generations
+     * the oldest kept snapshot does not need
+     */
+    private void prune() throws IOException {
+        List<SnapshotFile.Header> headers = headers(snapshotFiles());
+        int kept = headers.size();
+        for (int bases = 0; kept > 0 && bases < retain; ) {
+            if (headers.get(--kept).isFull()) {
+                bases++;
+            }
+        }
+        for (SnapshotFile.Header old : headers.subList(0, kept)) {
+            Files.deleteIfExists(old.getFile());
+        }
+        if (wal != null && kept < headers.size()) {
+            wal.discard(headers.get(kept).getGeneration());
+        }
+    }
+
+    private List<Path> snapshotFiles() throws IOException {
+        if (Files.notExists(folder)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.filter(this::isSnapshotFile).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Read the headers of the snapshots, oldest first
+     */
+    private List<SnapshotFile.Header> headers(List<Path> files) {
+        List<SnapshotFile.Header> headers = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                headers.add(SnapshotFile.readHeader(file));
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Ignoring snapshot " + ex.getMessage());
+            }
+        }
+        headers.sort(Comparator.comparingLong(SnapshotFile.Header::getSequence)
+                .thenComparing(header -> lastModified(header.getFile())));
+        return headers;
+    }
+
+    /**
+     * Name a snapshot after its sequence number, zero padded so the names
+     * sort in order
+     */
+    private Path snapshotFile(long sequence) {
+        return folder.resolve(MessageFormat.format(fileName, String.format("%012d", sequence)));
+    }
+
+    /**
+     * Match a file name against the snapshot file name pattern
+     */
+    private boolean isSnapshotFile(Path file) {
+        String name = file.getFileName().toString();
+        int field = fileName.indexOf("{0}");
+        String prefix = field < 0 ? fileName : fileName.substring(0, field);
+        String suffix = field < 0 ? "" : fileName.substring(field + 3);
+        return name.length() > prefix.length() + suffix.length()
+                && name.startsWith(prefix) && name.endsWith(suffix);
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException ex) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    void addMetrics(Map<String, Number> metrics) {
+        metrics.put("snapshot.count", snapshots.sum());
+        metrics.put("snapshot.failures", failures.sum());
+        metrics.put("snapshot.last.duration.ms", lastDuration / 1_000_000);
+        metrics.put("snapshot.last.bytes", lastBytes);
+        metrics.put("snapshot.last.pause.us", lastPause / 1_000);
+        metrics.put("write.latency.idle.us", average(idleNanos, idleWrites) / 1_000);
+        metrics.put("write.latency.snapshot.us", average(busyNanos, busyWrites) / 1_000);
+    }
+
+    private static double average(LongAdder total, LongAdder count) {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * Append only log of the products and reviews created since the data
+ * files were written or the last snapshot was taken, replayed on top of
+ * them at startup.
+ *
+ * Records are framed like the segment store ones. Appending only copies a
+ * record into the pending batch and returns its sequence number; a writer
+ * then waits in {@link #commit(long)} until the record is durable. The
+ * first waiting writer becomes the leader: it optionally waits for the
+ * commit window so more writers can join, writes the whole batch and
+ * forces it with a single call, while the other writers wait for it.
+ *
+ * The log is split into numbered generations. A snapshot rolls the log to
+ * a new generation, and the generations older than the snapshots kept are
+ * discarded.
+ *
+ * @author fabio
+ */
+class WriteAheadLog {
+
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+    private static final byte PRODUCT = 'P';
+    private static final byte REVIEW = 'R';
+    private static final int HEADER = Integer.BYTES + 1;
+
+    private final Path folder;
+    private final String fileName;
+    private final long commitWindow;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition committed = lock.newCondition();
+    private FileChannel channel;
+    private int generation;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer flushing = ByteBuffer.allocate(64 * 1024);
+    private long appended;
+    private long durable;
+    private boolean flushInProgress;
+    private IOException failure;
+
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder records = new LongAdder();
+
+    /**
+     * @param folder where the log files are kept
+     * @param fileName pattern of the log file names, {0} is the generation
+     * @param commitWindow how long the leader of a group commit waits for
+     * other writers to join the batch, in microseconds
+     */
+    WriteAheadLog(Path folder, String fileName, long commitWindow) {
+        this.folder = folder;
+        this.fileName = fileName;
+        this.commitWindow = TimeUnit.MICROSECONDS.toNanos(commitWindow);
+    }
+
+    private Path logFile(int generation) {
+        return folder.resolve(MessageFormat.format(fileName, String.valueOf(generation)));
+    }
+
+    /**
+     * Find the highest generation in the log folder
+     *
+     * @return the generation, -1 when there is none
+     */
+    private int newestGeneration() throws IOException {
+        int field = fileName.indexOf("{0}");
+        String prefix = fileName.substring(0, field);
+        String suffix = fileName.substring(field + 3);
+        int newest = -1;
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.length() > prefix.length() + suffix.length() && name.startsWith(prefix) && name.endsWith(suffix)) {
+                    try {
+                        newest = Math.max(newest, Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())));
+                    } catch (NumberFormatException ex) {
+                        // not a log generation
+                    }
+                }
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Open the log and replay it from a generation on, handing every
+     * product and review to the consumers in the order they were logged.
+     * Older generations are left for the snapshots that may still need
+     * them. A torn record at the end of the newest generation is cut off;
+     * an unreadable record in an earlier generation or a missing generation
+     * fails the replay, as a generation was complete when it was rolled.
+     *
+     * @param from the first generation to replay
+     * @return the number of records replayed
+     */
+    int open(int from, Consumer<Product> productConsumer, ObjIntConsumer<Review> reviewConsumer) throws IOException {
+        Files.createDirectories(folder);
+        int newest = newestGeneration();
+        for (int next = from; next < newest; next++) {
+            if (Files.notExists(logFile(next))) {
+                throw new IOException("Write ahead log generation " + next + " is missing but generation "
+                        + newest + " exists, the changes logged in between are lost");
+            }
+        }
+        int replayed = 0;
+        generation = from;
+        while (true) {
+            boolean last = Files.notExists(logFile(generation + 1));
+            channel = FileChannel.open(logFile(generation),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            replayed += replay(last, productConsumer, reviewConsumer);
+            if (last) {
+                return replayed;
+            }
+            channel.close();
+            generation++;
+        }
+    }
+
+    /**
+     * @param last whether this is the newest generation, the only one whose
+     * tail may be torn
+     */
+    private int replay(boolean last, Consumer<Product> productConsumer, ObjIntConsumer<Review> reviewConsumer) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int offset = 0;
+        int replayed = 0;
+        while (offset + HEADER <= size) {
+            int length = data.getInt(offset);
+            if (length < 1 || offset + Integer.BYTES + length > size) {
+                break;
+            }
+            ByteBuffer record = data.slice(offset + Integer.BYTES, length);
+            try {
+                byte type = record.get();
+                if (type == PRODUCT) {
+                    productConsumer.accept(RecordCodec.getProduct(record));
+                } else if (type == REVIEW) {
+                    int id = RecordCodec.getVarInt(record);
+                    reviewConsumer.accept(RecordCodec.getReview(record), id);
+                } else {
+                    break;
+                }
+            } catch (RuntimeException ex) {
+                break;
+            }
+            offset += Integer.BYTES + length;
+            replayed++;
+        }
+        if (offset < size && !last) {
+            channel.close();
+            throw new IOException("Write ahead log generation " + generation + " is damaged at " + offset + " of " + size
+                    + " bytes, the records after it cannot be read");
+        }
+        if (offset < size) {
+            logger.log(Level.WARNING, "Truncating write ahead log " + generation + " at " + offset + " of " + size + " bytes");
+            channel.truncate(offset);
+        }
+        channel.position(offset);
+        return replayed;
+    }
+
+    /**
+     * Add a product to the pending batch
+     *
+     * @return the sequence number to pass to {@link #commit(long)}
+     */
+    long append(Product product) {
+        try {
+            lock.lock();
+            int start = record(PRODUCT, RecordCodec.maxSize(product));
+            RecordCodec.putProduct(pending, product);
+            return close(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add a review to the pending batch
+     *
+     * @return the sequence number to pass to {@link #commit(long)}
+     */
+    long append(int id, Review review) {
+        try {
+            lock.lock();
+            int start = record(REVIEW, 5 + RecordCodec.maxSize(review));
+            RecordCodec.putVarInt(pending, id);
+            RecordCodec.putReview(pending, review);
+            return close(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start a record in the pending batch, growing it when needed
+     *
+     * @return the offset of the record
+     */
+    private int record(byte type, int maxSize) {
+        if (pending.remaining() < HEADER + maxSize) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + HEADER + maxSize));
+            pending.flip();
+            pending = larger.put(pending);
+        }
+        int start = pending.position();
+        pending.putInt(0);
+        pending.put(type);
+        return start;
+    }
+
+    private long close(int start) {
+        pending.putInt(start, pending.position() - start - Integer.BYTES);
+        records.increment();
+        return ++appended;
+    }
+
+    /**
+     * Wait until a record is durable, writing and forcing the pending
+     * batch when no other writer is doing it
+     *
+     * @param sequence the sequence number returned when appending
+     */
+    void commit(long sequence) throws IOException {
+        try {
+            lock.lock();
+            if (channel == null) {
+                throw new IOException("Write ahead log in " + folder + " is not open");
+            }
+            while (durable < sequence) {
+                if (failure != null) {
+                    throw new IOException("Write ahead log failed", failure);
+                }
+                if (flushInProgress) {
+                    committed.await();
+                } else {
+                    flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for commit");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write and force the pending batch, called by the leader holding the
+     * lock which is released during the IO
+     */
+    private void flush() {
+        flushInProgress = true;
+        if (commitWindow > 0) {
+            try {
+                committed.awaitNanos(commitWindow);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ByteBuffer batch = pending;
+        pending = flushing;
+        flushing = batch;
+        long batchEnd = appended;
+        lock.unlock();
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error writing the write ahead log " + ex.getMessage(), ex);
+            failure = ex;
+        } finally {
+            batch.clear();
+            lock.lock();
+            flushInProgress = false;
+            if (failure == null) {
+                durable = batchEnd;
+                commits.increment();
+            }
+            committed.signalAll();
+        }
+    }
+
+    /**
+     * Make every appended record durable and continue in a new generation.
+     * Caller must keep writers from appending, so the records of the old
+     * generations are exactly the ones visible before the roll. Fails when
+     * the file of the new generation exists already.
+     *
+     * @return the new generation
+     */
+    int roll() throws IOException {
+        try {
+            lock.lock();
+            while (flushInProgress) {
+                committed.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new IOException("Write ahead log failed", failure);
+            }
+            try {
+                pending.flip();
+                while (pending.hasRemaining()) {
+                    channel.write(pending);
+                }
+                channel.force(false);
+                pending.clear();
+                durable = appended;
+                commits.increment();
+                committed.signalAll();
+                // a generation left from an earlier log would mix its stale
+                // records with the new ones, so an existing one is an error
+                FileChannel next = FileChannel.open(logFile(generation + 1),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.close();
+                channel = next;
+                return ++generation;
+            } catch (IOException ex) {
+                failure = ex;
+                committed.signalAll();
+                throw ex;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the generations older than the given one
+     */
+    void discard(int before) throws IOException {
+        int old = before - 1;
+        while (old >= 0 && Files.deleteIfExists(logFile(old))) {
+            old--;
+        }
+    }
+
+    long getCommits() {
+        return commits.sum();
+    }
+
+    long getRecords() {
+        return records.sum();
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rateable;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Time and allocation of parsing product and review records with the
+ * MessageFormat patterns the data files used to be read with and with
+ * {@link CsvParser}, on generated lines held in memory.
+ * <p>
+ * Arguments: number of lines of each kind (1000000), rounds (3)
+ *
+ * @author fabio
+ */
+public class CsvParserBenchmark {
+
+    public static void main(String[] args) throws ParseException {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        Random random = new Random(3);
+        LocalDate today = LocalDate.now();
+        List<String> products = new ArrayList<>(count);
+        List<String> reviews = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            products.add((i % 2 == 0 ? "F," : "D,") + i + ",Product " + i + ","
+                    + BigDecimal.valueOf(random.nextInt(100_000), 2) + "," + random.nextInt(6) + ","
+                    + today.plusDays(random.nextInt(365)));
+            reviews.add(random.nextInt(6) + ",Review " + i + " of a product, would buy again");
+        }
+        MessageFormat productFormat = new MessageFormat("{0},{1},{2},{3},{4},{5}");
+        MessageFormat reviewFormat = new MessageFormat("{0},{1}");
+        CsvParser productParser = new CsvParser(6);
+        CsvParser reviewParser = new CsvParser(2);
+
+        for (int round = 0; round < rounds; round++) {
+            long sum = 0;
+            int sampled = 0;
+            int differ = 0;
+            long bytes = Measurements.allocatedBytes();
+            long start = System.nanoTime();
+            for (String line : products) {
+                sum += formatProduct(productFormat, line).getId();
+            }
+            long formatProducts = System.nanoTime() - start;
+            long formatProductBytes = Measurements.allocatedBytes() - bytes;
+
+            bytes = Measurements.allocatedBytes();
+            start = System.nanoTime();
+            for (String line : products) {
+                sum += parseProduct(productParser, line).getId();
+            }
+            long parseProducts = System.nanoTime() - start;
+            long parseProductBytes = Measurements.allocatedBytes() - bytes;
+
+            bytes = Measurements.allocatedBytes();
+            start = System.nanoTime();
+            for (String line : reviews) {
+                Object[] values = reviewFormat.parse(line);
+                sum += new Review(Rateable.convert(Integer.parseInt((String) values[0])), (String) values[1]).getComments().length();
+            }
+            long formatReviews = System.nanoTime() - start;
+            long formatReviewBytes = Measurements.allocatedBytes() - bytes;
+
+            bytes = Measurements.allocatedBytes();
+            start = System.nanoTime();
+            for (String line : reviews) {
+                reviewParser.parse(line);
+                sum += new Review(Rateable.convert(reviewParser.getInt(0)), reviewParser.getString(1)).getComments().length();
+            }
+            long parseReviews = System.nanoTime() - start;
+            long parseReviewBytes = Measurements.allocatedBytes() - bytes;
+
+            // through a double the price loses its trailing zeros
+            for (int i = 0; i < count; i += 97) {
+                sampled++;
+                if (!formatProduct(productFormat, products.get(i)).getPrice()
+                        .equals(parseProduct(productParser, products.get(i)).getPrice())) {
+                    differ++;
+                }
+            }
+            System.out.printf("products: MessageFormat %.0f ns %d B, CsvParser %.0f ns %d B"
+                    + " | reviews: MessageFormat %.0f ns %d B, CsvParser %.0f ns %d B per line"
+                    + " | %d of %d prices differ (%d)%n",
+                    formatProducts / (double) count, formatProductBytes / count,
+                    parseProducts / (double) count, parseProductBytes / count,
+                    formatReviews / (double) count, formatReviewBytes / count,
+                    parseReviews / (double) count, parseReviewBytes / count,
+                    differ, sampled, sum);
+        }
+    }
+
+    private static Product formatProduct(MessageFormat format, String line) throws ParseException {
+        Object[] values = format.parse(line);
+        int id = Integer.parseInt((String) values[1]);
+        String name = (String) values[2];
+        BigDecimal price = BigDecimal.valueOf(Double.parseDouble((String) values[3]));
+        Rating rating = Rateable.convert(Integer.parseInt((String) values[4]));
+        return values[0].equals("D")
+                ? new Drink(id, name, price, rating)
+                : new Food(id, name, price, rating, LocalDate.parse((String) values[5]));
+    }
+
+    private static Product parseProduct(CsvParser parser, String line) throws ParseException {
+        parser.parse(line);
+        int id = parser.getInt(1);
+        String name = parser.getString(2);
+        BigDecimal price = parser.getDecimal(3);
+        Rating rating = Rateable.convert(parser.getInt(4));
+        return parser.getChar(0) == 'D'
+                ? new Drink(id, name, price, rating)
+                : new Food(id, name, price, rating, parser.getDate(5));
+    }
+}
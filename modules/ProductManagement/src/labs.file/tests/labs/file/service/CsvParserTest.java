@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.time.LocalDate;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Records split into fields by the quoting rules of the data files
+ *
+ * @author fabio
+ */
+public class CsvParserTest {
+
+    @Test
+    public void splitsPlainFields() throws ParseException {
+        CsvParser parser = new CsvParser(6).parse("F,103,Cake,3.99,4,2021-05-01");
+        assertEquals('F', parser.getChar(0));
+        assertEquals(103, parser.getInt(1));
+        assertEquals("Cake", parser.getString(2));
+        assertEquals(new BigDecimal("3.99"), parser.getDecimal(3));
+        assertEquals(4, parser.getInt(4));
+        assertEquals(LocalDate.of(2021, 5, 1), parser.getDate(5));
+    }
+
+    @Test
+    public void keepsDelimitersInsideQuotes() throws ParseException {
+        CsvParser parser = new CsvParser(3).parse("\"Tea, green\",\"1,2\",last");
+        assertEquals("Tea, green", parser.getString(0));
+        assertEquals("1,2", parser.getString(1));
+        assertEquals("last", parser.getString(2));
+    }
+
+    @Test
+    public void unescapesDoubledQuotes() throws ParseException {
+        CsvParser parser = new CsvParser(3).parse("\"Say \"\"cheese\"\"\",\"\"\"\",x");
+        assertEquals("Say \"cheese\"", parser.getString(0));
+        assertEquals("\"", parser.getString(1));
+        assertEquals("x", parser.getString(2));
+    }
+
+    @Test
+    public void readsEmptyFields() throws ParseException {
+        CsvParser parser = new CsvParser(4).parse(",\"\",,");
+        for (int field = 0; field < 4; field++) {
+            assertEquals("", parser.getString(field));
+        }
+    }
+
+    @Test
+    public void givesTheRestOfTheLineToAnUnquotedLastField() throws ParseException {
+        CsvParser parser = new CsvParser(2).parse("5,Lovely, would buy again, \u00e0 la carte");
+        assertEquals(5, parser.getInt(0));
+        assertEquals("Lovely, would buy again, \u00e0 la carte", parser.getString(1));
+    }
+
+    @Test
+    public void readsPricesExactly() throws ParseException {
+        CsvParser parser = new CsvParser(4).parse("0.10,-2.500,7,12345678901234567890.12");
+        assertEquals(new BigDecimal("0.10"), parser.getDecimal(0));
+        assertEquals(new BigDecimal("-2.500"), parser.getDecimal(1));
+        assertEquals(new BigDecimal("7"), parser.getDecimal(2));
+        assertEquals(new BigDecimal("12345678901234567890.12"), parser.getDecimal(3));
+    }
+
+    @Test
+    public void reusesTheParserFromLineToLine() throws ParseException {
+        CsvParser parser = new CsvParser(2);
+        assertEquals("quoted, once", parser.parse("1,\"quoted, once\"").getString(1));
+        assertEquals("plain", parser.parse("2,plain").getString(1));
+        assertEquals(2, parser.getInt(0));
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsMissingFields() throws ParseException {
+        new CsvParser(3).parse("1,2");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsAnUnterminatedQuote() throws ParseException {
+        new CsvParser(2).parse("1,\"never closed");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsTextAfterAClosingQuote() throws ParseException {
+        new CsvParser(2).parse("\"1\"x,2");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsAnInvalidNumber() throws ParseException {
+        new CsvParser(2).parse("1x,2").getInt(0);
+    }
+}
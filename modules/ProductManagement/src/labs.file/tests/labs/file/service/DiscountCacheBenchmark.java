@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+
+/**
+ * Discount sums served by the {@link DiscountCache} against summing the
+ * columns on every call.
+ * <p>
+ * Arguments: number of products (1000000), calls per round (1000000),
+ * rounds (5)
+ *
+ * @author fabio
+ */
+public class DiscountCacheBenchmark {
+
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int calls = (args.length > 1) ? Integer.parseInt(args[1]) : 1_000_000;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        Random random = new Random(1);
+        LocalDate today = LocalDate.now();
+        List<ProductEntry> entries = new ArrayList<>(count);
+        for (int id = 0; id < count; id++) {
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(100_000), 2);
+            Rating rating = Rating.values()[random.nextInt(6)];
+            Product product = (id % 2 == 0)
+                    ? new Food(id, "Food " + id, price, rating, today.plusDays(random.nextInt(3)))
+                    : new Drink(id, "Drink " + id, price, rating);
+            entries.add(new ProductEntry(product, Collections.emptyList()));
+        }
+        Catalogue catalogue = new Catalogue(16);
+        catalogue.replace(entries.stream());
+        DiscountCache cache = new DiscountCache(catalogue);
+        LocalDateTime happyHour = today.atTime(18, 0);
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            long total = 0;
+            for (int call = 0; call < calls; call++) {
+                total += cache.get(happyHour)[Rating.FIVE_STAR.ordinal()];
+            }
+            long cached = System.nanoTime();
+            long[] sums = catalogue.snapshot().sumDiscounts(happyHour.toLocalDate(), happyHour.toLocalTime());
+            long summed = System.nanoTime();
+            System.out.printf("cached %.0f ns per call, summing the columns %.2f ms (%d, %d)%n",
+                    (cached - start) / (double) calls, (summed - cached) / 1e6, total / calls, sums[Rating.FIVE_STAR.ordinal()]);
+        }
+    }
+}
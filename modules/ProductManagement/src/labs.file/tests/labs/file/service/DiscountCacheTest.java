@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Cached discount sums end at the happy hour and day boundaries and on
+ * changes, and always agree with summing the columns
+ *
+ * @author fabio
+ */
+public class DiscountCacheTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2021, 5, 1);
+
+    private Catalogue catalogue;
+    private DiscountCache cache;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(1);
+        List<ProductEntry> entries = new ArrayList<>();
+        for (int id = 0; id < 2000; id++) {
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(100_000), 2);
+            Rating rating = Rating.values()[random.nextInt(6)];
+            Product product = (id % 2 == 0)
+                    ? new Food(id, "Food " + id, price, rating, TODAY.plusDays(random.nextInt(3)))
+                    : new Drink(id, "Drink " + id, price, rating);
+            entries.add(new ProductEntry(product, Collections.emptyList()));
+        }
+        catalogue = new Catalogue(16);
+        catalogue.replace(entries.stream());
+        cache = new DiscountCache(catalogue);
+    }
+
+    private void assertSameAsSummed(LocalDateTime time) {
+        assertArrayEquals(time.toString(), catalogue.snapshot().sumDiscounts(time.toLocalDate(), time.toLocalTime()),
+                cache.get(time));
+    }
+
+    @Test
+    public void endsBeforeHappyHourJustAfterItsStart() {
+        LocalDateTime start = TODAY.atTime(17, 30, 0, 1);
+        assertEquals(start, DiscountCache.nextBoundary(TODAY.atStartOfDay()));
+        assertEquals(start, DiscountCache.nextBoundary(TODAY.atTime(12, 0)));
+        assertEquals(start, DiscountCache.nextBoundary(TODAY.atTime(17, 29, 59, 999_999_999)));
+        assertEquals(start, DiscountCache.nextBoundary(TODAY.atTime(17, 30)));
+    }
+
+    @Test
+    public void endsDuringHappyHourAtItsEnd() {
+        LocalDateTime end = TODAY.atTime(18, 30);
+        assertEquals(end, DiscountCache.nextBoundary(TODAY.atTime(17, 30, 0, 1)));
+        assertEquals(end, DiscountCache.nextBoundary(TODAY.atTime(18, 0)));
+        assertEquals(end, DiscountCache.nextBoundary(TODAY.atTime(18, 29, 59, 999_999_999)));
+    }
+
+    @Test
+    public void endsAfterHappyHourAtMidnight() {
+        LocalDateTime midnight = TODAY.plusDays(1).atStartOfDay();
+        assertEquals(midnight, DiscountCache.nextBoundary(TODAY.atTime(18, 30)));
+        assertEquals(midnight, DiscountCache.nextBoundary(TODAY.atTime(23, 59, 59, 999_999_999)));
+    }
+
+    @Test
+    public void agreesWithTheColumnsAroundTheBoundaries() {
+        LocalDateTime[] times = {
+            TODAY.atTime(12, 0), TODAY.atTime(17, 29, 59, 999_999_999), TODAY.atTime(17, 30), TODAY.atTime(17, 30, 0, 1),
+            TODAY.atTime(18, 0), TODAY.atTime(18, 29, 59, 999_999_999), TODAY.atTime(18, 30),
+            TODAY.atTime(23, 59, 59, 999_999_999), TODAY.plusDays(1).atStartOfDay(), TODAY.plusDays(1).atTime(17, 45),
+            TODAY.atTime(18, 0)
+        };
+        for (LocalDateTime time : times) {
+            assertSameAsSummed(time);
+        }
+        Random random = new Random(2);
+        LocalDateTime time = TODAY.atTime(17, 29, 59, 999_999_000);
+        for (int step = 0; step < 3000; step++) {
+            time = time.plusNanos(random.nextInt(200));
+            assertSameAsSummed(time);
+        }
+    }
+
+    @Test
+    public void recomputesAfterAProductChanges() {
+        LocalDateTime happyHour = TODAY.atTime(18, 0);
+        long[] before = cache.get(happyHour).clone();
+        Lock lock = catalogue.writeLock(3);
+        try {
+            lock.lock();
+            Product changed = catalogue.snapshot().get(3).getProduct();
+            catalogue.put(3, new ProductEntry(changed.applyRating(Rating.values()[(changed.getRating().ordinal() + 1) % 6]),
+                    Collections.emptyList()));
+        } finally {
+            lock.unlock();
+        }
+        assertSameAsSummed(happyHour);
+        assertFalse(Arrays.equals(before, cache.get(happyHour)));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import static java.math.RoundingMode.HALF_UP;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+
+/**
+ * Time and allocation of summing the discounts per rating, with the
+ * BigDecimal arithmetic getDiscounts used to do, with the fixed-point
+ * discounts of the products and with the primitive columns.
+ * <p>
+ * Arguments: number of products (200000), rounds (8)
+ *
+ * @author fabio
+ */
+public class DiscountsBenchmark {
+
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 200_000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        Random random = new Random(7);
+        LocalDate today = LocalDate.now();
+        List<ProductEntry> entries = new ArrayList<>(count);
+        for (int id = 0; id < count; id++) {
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(100_000), 2);
+            Rating rating = Rating.values()[random.nextInt(Rating.values().length)];
+            Product product = (id % 2 == 0)
+                    ? new Food(id, "Food " + id, price, rating, today.plusDays(random.nextInt(3)))
+                    : new Drink(id, "Drink " + id, price, rating);
+            entries.add(new ProductEntry(product, Collections.emptyList()));
+        }
+        Catalogue catalogue = new Catalogue(16);
+        catalogue.replace(entries.stream());
+
+        for (int round = 0; round < rounds; round++) {
+            long allocated = Measurements.allocatedBytes();
+            long start = System.nanoTime();
+            Map<String, BigDecimal> decimal = catalogue.snapshot().values()
+                    .map(ProductEntry::getProduct)
+                    .collect(Collectors.groupingBy(product -> product.getRating().getStars(),
+                            Collectors.reducing(BigDecimal.ZERO,
+                                    product -> (product.getDiscountMinor() == 0) ? BigDecimal.ZERO
+                                    : product.getPrice().multiply(Product.discount).setScale(Product.MONEY_SCALE, HALF_UP),
+                                    BigDecimal::add)));
+            long decimalNanos = System.nanoTime() - start;
+            long decimalBytes = Measurements.allocatedBytes() - allocated;
+
+            allocated = Measurements.allocatedBytes();
+            start = System.nanoTime();
+            Map<String, Long> fixed = catalogue.snapshot().values()
+                    .map(ProductEntry::getProduct)
+                    .collect(Collectors.groupingBy(product -> product.getRating().getStars(),
+                            Collectors.summingLong(Product::getDiscountMinor)));
+            long fixedNanos = System.nanoTime() - start;
+            long fixedBytes = Measurements.allocatedBytes() - allocated;
+
+            allocated = Measurements.allocatedBytes();
+            start = System.nanoTime();
+            long[] sums = catalogue.snapshot().sumDiscounts(LocalDate.now(), LocalTime.now());
+            long columnNanos = System.nanoTime() - start;
+            long columnBytes = Measurements.allocatedBytes() - allocated;
+
+            System.out.printf("BigDecimal %6.1f ms %,12d B | fixed point %6.1f ms %,12d B | columns %6.2f ms %,8d B%n",
+                    decimalNanos / 1e6, decimalBytes, fixedNanos / 1e6, fixedBytes, columnNanos / 1e6, columnBytes);
+            if (round == rounds - 1) {
+                System.out.println(decimal + " " + fixed + " " + Arrays.toString(sums));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import labs.pm.data.Drink;
+import labs.pm.data.Rating;
+
+/**
+ * Cost of finding a product by id as the catalogue grows, through the
+ * primitive id index and with the linear scan findProduct used to do.
+ * The scan is only timed up to 100000 products.
+ * <p>
+ * Arguments: largest number of products (1000000), lookups per size
+ * (2000000), rounds (3)
+ *
+ * @author fabio
+ */
+public class LookupBenchmark {
+
+    private static final int SCAN_LIMIT = 100_000;
+
+    public static void main(String[] args) {
+        int largest = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 2_000_000;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        for (int count = 1_000; count <= largest; count *= 10) {
+            List<ProductEntry> entries = new ArrayList<>(count);
+            for (int id = 0; id < count; id++) {
+                entries.add(new ProductEntry(new Drink(id, "Drink " + id, BigDecimal.ONE, Rating.NOT_RATED),
+                        Collections.emptyList()));
+            }
+            Catalogue catalogue = new Catalogue(64);
+            catalogue.replace(entries.stream());
+            CatalogueVersion version = catalogue.snapshot();
+            int[] ids = new Random(count).ints(lookups, 0, count).toArray();
+            for (int round = 0; round < rounds; round++) {
+                long found = 0;
+                long start = System.nanoTime();
+                for (int id : ids) {
+                    found += version.get(id).getProduct().getId();
+                }
+                double indexed = (System.nanoTime() - start) / (double) lookups;
+
+                String scanned = "-";
+                if (count <= SCAN_LIMIT) {
+                    int scans = Math.max(lookups / count, 10);
+                    start = System.nanoTime();
+                    for (int i = 0; i < scans; i++) {
+                        int id = ids[i];
+                        found += version.values()
+                                .filter(entry -> entry.getProduct().getId() == id)
+                                .findFirst()
+                                .orElseThrow()
+                                .getProduct().getId();
+                    }
+                    scanned = String.format("%.0f", (System.nanoTime() - start) / (double) scans);
+                }
+                System.out.printf("%,9d products: index %.1f ns, scan %s ns per lookup (%d)%n",
+                        count, indexed, scanned, found);
+            }
+        }
+    }
+}
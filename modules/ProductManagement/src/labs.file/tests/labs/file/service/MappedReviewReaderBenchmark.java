@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.Rateable;
+import labs.pm.data.Review;
+
+/**
+ * Throughput and allocation of reading generated review files line by
+ * line with {@link CsvParser}, as the loader does without the mapped
+ * reader, and with {@link MappedReviewReader} decoding, pooling and only
+ * summarizing the reviews. The files are generated first, so they are
+ * read from the page cache.
+ * <p>
+ * Arguments: megabytes of reviews (2048), number of files (32), rounds (2)
+ *
+ * @author fabio
+ */
+public class MappedReviewReaderBenchmark {
+
+    private interface Reader {
+
+        long read(Path file) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long megabytes = (args.length > 0) ? Long.parseLong(args[0]) : 2048;
+        int fileCount = (args.length > 1) ? Integer.parseInt(args[1]) : 32;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+        Path folder = Files.createTempDirectory("reviews");
+        List<Path> files = new ArrayList<>(fileCount);
+        try {
+            long start = System.nanoTime();
+            long records = generate(folder, files, fileCount, megabytes * 1024 * 1024 / fileCount);
+            long bytes = 0;
+            for (Path file : files) {
+                bytes += Files.size(file);
+            }
+            System.out.printf("generated %,d reviews in %d files, %,d MB in %d ms%n", records, fileCount,
+                    bytes / (1024 * 1024), (System.nanoTime() - start) / 1_000_000);
+
+            MappedReviewReader mapped = new MappedReviewReader();
+            for (int round = 0; round < rounds; round++) {
+                run("lines", files, bytes, records, file -> {
+                    CsvParser parser = new CsvParser(2);
+                    try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+                        return lines.map(line -> {
+                            try {
+                                parser.parse(line);
+                                return new Review(Rateable.convert(parser.getInt(0)), parser.getString(1));
+                            } catch (ParseException ex) {
+                                return null;
+                            }
+                        }).filter(review -> review != null).collect(Collectors.toList()).size();
+                    }
+                });
+                run("mapped decode", files, bytes, records, file -> mapped.decode(file).size());
+                run("mapped pooled", files, bytes, records, file -> mapped.read(file).size());
+                run("mapped summary", files, bytes, records, file -> mapped.summarize(file).getCount());
+            }
+        } finally {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(folder);
+        }
+    }
+
+    /**
+     * Write review files of about the given size, with comments taken from
+     * a thousand texts so the pooled read does not fill the heap. Every
+     * tenth comment is quoted.
+     *
+     * @return the number of reviews written
+     */
+    private static long generate(Path folder, List<Path> files, int fileCount, long fileSize) throws IOException {
+        Random random = new Random(9);
+        String[] comments = new String[1000];
+        for (int i = 0; i < comments.length; i++) {
+            comments[i] = "Review " + i + " of a product \u00e0 la carte, " + "would buy again ".repeat(random.nextInt(4));
+        }
+        long records = 0;
+        for (int i = 0; i < fileCount; i++) {
+            Path file = folder.resolve("reviews" + i + ".txt");
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                long written = 0;
+                while (written < fileSize) {
+                    String comment = comments[random.nextInt(comments.length)];
+                    String line = random.nextInt(6) + ","
+                            + ((records % 10 == 0) ? "\"" + comment.replace("e", "\"\"") + "\"" : comment) + "\n";
+                    writer.write(line);
+                    written += line.length();
+                    records++;
+                }
+            }
+            files.add(file);
+        }
+        return records;
+    }
+
+    private static void run(String mode, List<Path> files, long bytes, long records, Reader reader) throws IOException {
+        long allocated = Measurements.allocatedBytes();
+        long start = System.nanoTime();
+        long read = 0;
+        for (Path file : files) {
+            read += reader.read(file);
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = Measurements.allocatedBytes() - allocated;
+        System.out.printf("%-14s %7.1f MB/s %6.1f B per record%s%n", mode, bytes / (1024.0 * 1024.0) / (nanos / 1e9),
+                (double) allocated / records, (read == records) ? "" : ", read " + read + " of " + records);
+    }
+}
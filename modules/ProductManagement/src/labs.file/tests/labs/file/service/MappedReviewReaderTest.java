@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.Rateable;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The mapped reader gives the same reviews as parsing the lines of the
+ * file with {@link CsvParser}
+ *
+ * @author fabio
+ */
+public class MappedReviewReaderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path file;
+    private final MappedReviewReader reader = new MappedReviewReader();
+
+    @Before
+    public void setUp() {
+        file = temp.getRoot().toPath().resolve("reviews101.txt");
+    }
+
+    private static List<String> parsed(Path file) throws IOException {
+        CsvParser parser = new CsvParser(2);
+        List<String> reviews = new ArrayList<>();
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            for (String line : (Iterable<String>) lines::iterator) {
+                try {
+                    parser.parse(line);
+                    reviews.add(new Review(Rateable.convert(parser.getInt(0)), parser.getString(1)).toString());
+                } catch (ParseException | NumberFormatException ex) {
+                    // skipped by the loader as well
+                }
+            }
+        }
+        return reviews;
+    }
+
+    private static List<String> strings(List<Review> reviews) {
+        return reviews.stream().map(Review::toString).collect(Collectors.toList());
+    }
+
+    private void assertSameAsParsed(String content) throws IOException {
+        Files.writeString(file, content, StandardCharsets.UTF_8);
+        List<String> expected = parsed(file);
+        assertEquals(expected, strings(reader.decode(file)));
+        assertEquals(expected, strings(reader.read(file)));
+        assertEquals(expected.size(), reader.summarize(file).getCount());
+    }
+
+    @Test
+    public void readsPlainReviews() throws IOException {
+        assertSameAsParsed("4,Rather weak tea\n2,Fine tea\n5,Good tea \u00e0 la carte \u2605\n");
+    }
+
+    @Test
+    public void readsTheLastLineWithoutANewline() throws IOException {
+        assertSameAsParsed("4,Rather weak tea\n2,Fine tea\n3,Last one, no newline");
+        assertEquals(3, reader.decode(file).size());
+    }
+
+    @Test
+    public void readsQuotedComments() throws IOException {
+        assertSameAsParsed("4,\"Weak, but \"\"fine\"\"\"\n3,Unquoted, with commas\n1,\"\"\n5,\"\"\"\"");
+    }
+
+    @Test
+    public void readsWindowsLineEnds() throws IOException {
+        assertSameAsParsed("4,Rather weak tea\r\n2,Fine tea\r\n1,Cold\r\n");
+    }
+
+    @Test
+    public void skipsBlankAndMalformedLines() throws IOException {
+        assertSameAsParsed("4,Rather weak tea\n\nno rating\n,No rating either\n3,\"Unterminated\n2,Fine tea\n");
+        assertEquals(2, reader.decode(file).size());
+    }
+
+    @Test
+    public void readsAnEmptyFile() throws IOException {
+        assertSameAsParsed("");
+        assertTrue(reader.decode(file).isEmpty());
+    }
+
+    @Test
+    public void readsMappedFilesWithAndWithoutATrailingNewline() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; content.length() <= MappedReviewReader.MAP_THRESHOLD; i++) {
+            Rating rating = Rating.values()[i % 6];
+            content.append(rating.ordinal()).append(',');
+            if (i % 5 == 0) {
+                content.append("\"Review ").append(i).append(", \"\"quoted\"\" \u2605\"");
+            } else {
+                content.append("Review ").append(i).append(" \u00e0 la carte");
+            }
+            content.append((i % 7 == 0) ? "\r\n" : "\n");
+        }
+        assertSameAsParsed(content.toString());
+        assertSameAsParsed(content.substring(0, content.length() - 1) + "5,The very last review");
+    }
+}
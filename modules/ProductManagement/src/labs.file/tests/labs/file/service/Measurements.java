@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Measurements the benchmarks report besides time, read through the
+ * platform management beans when the jdk.management module is present
+ * (add it with --add-modules jdk.management), -1 otherwise
+ *
+ * @author fabio
+ */
+final class Measurements {
+
+    private static final Object threads;
+    private static final Method allocatedBytes;
+    private static final List<?> collectors;
+    private static final Method collectionTime;
+
+    static {
+        Object bean = null;
+        Method method = null;
+        try {
+            bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getCurrentThreadAllocatedBytes");
+        } catch (ReflectiveOperationException ex) {
+            // not measured
+        }
+        threads = bean;
+        allocatedBytes = method;
+
+        List<?> beans = null;
+        method = null;
+        try {
+            beans = (List<?>) Class.forName("java.lang.management.ManagementFactory").getMethod("getGarbageCollectorMXBeans").invoke(null);
+            method = Class.forName("java.lang.management.GarbageCollectorMXBean").getMethod("getCollectionTime");
+        } catch (ReflectiveOperationException ex) {
+            // not measured
+        }
+        collectors = beans;
+        collectionTime = method;
+    }
+
+    private Measurements() {
+    }
+
+    /**
+     * Bytes allocated by the current thread so far
+     */
+    static long allocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+        try {
+            return (long) allocatedBytes.invoke(threads);
+        } catch (ReflectiveOperationException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Milliseconds spent collecting garbage so far, by every collector
+     */
+    static long collectionMillis() {
+        if (collectionTime == null) {
+            return -1;
+        }
+        long millis = 0;
+        try {
+            for (Object collector : collectors) {
+                millis += (long) collectionTime.invoke(collector);
+            }
+        } catch (ReflectiveOperationException ex) {
+            return -1;
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Time and allocation of writing the report of a product with many
+ * reviews by sorting a copy of them and joining the whole text first, as
+ * printProductReport used to, and by streaming them through a
+ * {@link ReportWriter} one rating at a time. Both reports are checked to
+ * be the same. With a small heap, -Xmx160m for the default, only the
+ * streamed report can be written.
+ * <p>
+ * Arguments: number of reviews (1000000), rounds (3)
+ *
+ * @author fabio
+ */
+public class ReportWriterBenchmark {
+
+    private static String format(Review review) {
+        return MessageFormat.format(" Review: {0}\t{1}", review.getRating().getStars(), review.getComments());
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        Random random = new Random(3);
+        ReviewList reviews = ReviewList.EMPTY;
+        for (int i = 0; i < count; i++) {
+            reviews = reviews.plus(new Review(Rating.values()[random.nextInt(6)], "Review comment number " + random.nextInt(5000)));
+        }
+        Path folder = Files.createTempDirectory("reports");
+        Path joined = folder.resolve("joined.txt");
+        Path streamed = folder.resolve("streamed.txt");
+        try {
+            for (int round = 0; round < rounds; round++) {
+                long allocated = Measurements.allocatedBytes();
+                long start = System.nanoTime();
+                try {
+                    List<Review> sorted = new ArrayList<>(reviews);
+                    Collections.sort(sorted);
+                    try (PrintWriter out = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(joined), StandardCharsets.UTF_8))) {
+                        out.append("Product\n");
+                        out.append(sorted.stream().map(review -> format(review) + System.lineSeparator()).collect(Collectors.joining()));
+                    }
+                } catch (OutOfMemoryError ex) {
+                    System.out.print("joined ran out of memory | ");
+                    Files.deleteIfExists(joined);
+                }
+                long joinedNanos = System.nanoTime() - start;
+                long joinedBytes = Measurements.allocatedBytes() - allocated;
+
+                allocated = Measurements.allocatedBytes();
+                start = System.nanoTime();
+                try (ReportWriter out = new ReportWriter(streamed, 64 * 1024)) {
+                    out.write("Product\n");
+                    for (int r = Rating.values().length - 1; r >= 0; r--) {
+                        for (int i = 0; i < reviews.size(); i++) {
+                            if (reviews.getRating(i) == Rating.values()[r]) {
+                                out.write(format(reviews.get(i)));
+                                out.write(System.lineSeparator());
+                            }
+                        }
+                    }
+                    out.commit();
+                }
+                long streamedNanos = System.nanoTime() - start;
+                long streamedBytes = Measurements.allocatedBytes() - allocated;
+
+                System.out.printf("joined %5d ms %,6d MB allocated | streamed %5d ms %,6d MB allocated | %,d bytes, same %b%n",
+                        joinedNanos / 1_000_000, joinedBytes >> 20, streamedNanos / 1_000_000, streamedBytes >> 20,
+                        Files.size(streamed), Files.exists(joined) && Files.mismatch(joined, streamed) == -1);
+            }
+        } finally {
+            Files.deleteIfExists(joined);
+            Files.deleteIfExists(streamed);
+            Files.deleteIfExists(folder);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Garbage collection time with the reviews of the catalogue kept on the
+ * heap and in a {@link ReviewArena}, while products keep being reported
+ * on. Run each store in its own JVM with the same heap, for the pauses
+ * themselves add -Xlog:gc.
+ * <p>
+ * Arguments: heap, direct or mapped (heap), number of products (20000),
+ * reviews (3000000), seconds of reporting (10)
+ *
+ * @author fabio
+ */
+public class ReviewArenaBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        String store = (args.length > 0) ? args[0] : "heap";
+        int count = (args.length > 1) ? Integer.parseInt(args[1]) : 20_000;
+        int reviewCount = (args.length > 2) ? Integer.parseInt(args[2]) : 3_000_000;
+        int seconds = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+        Path folder = store.equals("mapped") ? Files.createTempDirectory("arena") : null;
+        try {
+            ReviewArena arena = store.equals("heap") ? null : new ReviewArena(folder, "arena{0}.dat", 64 * 1024 * 1024);
+            ReviewList[] lists = new ReviewList[count];
+            int[] sizes = new int[count];
+            Random random = new Random(7);
+            long collected = Measurements.collectionMillis();
+            long start = System.nanoTime();
+            for (int i = 0; i < reviewCount; i++) {
+                int id = i % count;
+                Review review = new Review(Rating.values()[random.nextInt(6)], "Review " + i + " of product " + id);
+                if (arena == null) {
+                    lists[id] = ((lists[id] == null) ? ReviewList.EMPTY : lists[id]).plus(review);
+                } else {
+                    arena.append(id, review);
+                }
+                sizes[id]++;
+            }
+            long loaded = System.nanoTime();
+            long loadCollected = Measurements.collectionMillis() - collected;
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            System.out.printf("%s: %,d reviews stored in %d ms, %d ms collecting garbage, live heap %,d MB%n", store,
+                    reviewCount, (loaded - start) / 1_000_000, loadCollected, (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+
+            collected = Measurements.collectionMillis();
+            long reports = 0;
+            long characters = 0;
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+            while (System.nanoTime() < end) {
+                int id = random.nextInt(count);
+                List<Review> reviews = (arena == null) ? lists[id] : arena.read(id, sizes[id]);
+                StringBuilder report = new StringBuilder();
+                for (Review review : reviews) {
+                    report.append(review.getRating().getStars()).append('\t').append(review.getComments()).append('\n');
+                }
+                characters += report.length();
+                reports++;
+            }
+            System.out.printf("%s: %,d reports of %,d characters in %d s, %d ms collecting garbage%n", store, reports,
+                    characters, seconds, Measurements.collectionMillis() - collected);
+        } finally {
+            if (folder != null) {
+                try (Stream<Path> files = Files.walk(folder)) {
+                    for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import labs.pm.data.Drink;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Word and prefix searches over review comments answered by the
+ * {@link ReviewIndex} and by scanning every review, with the time to
+ * build the index and to add to it.
+ * <p>
+ * Arguments: number of products (20000), reviews per product (5), reviews
+ * added afterwards (200000)
+ *
+ * @author fabio
+ */
+public class ReviewIndexBenchmark {
+
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 20_000;
+        int perProduct = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        int added = (args.length > 2) ? Integer.parseInt(args[2]) : 200_000;
+        Random random = new Random(7);
+        String[] vocabulary = new String[3000];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = "w" + Integer.toString(i, 36) + ((i % 3 == 0) ? "\u00e9" : "");
+        }
+        String[] comments = new String[20_000];
+        for (int i = 0; i < comments.length; i++) {
+            StringBuilder comment = new StringBuilder();
+            for (int w = 3 + random.nextInt(8); w > 0; w--) {
+                comment.append(vocabulary[(int) Math.min(vocabulary.length - 1, Math.abs(random.nextGaussian()) * 600)].toUpperCase())
+                        .append((w % 4 == 0) ? ", " : " ");
+            }
+            comments[i] = comment.toString();
+        }
+        Map<Integer, ReviewList> reviews = new TreeMap<>();
+        for (int id = 0; id < count; id++) {
+            ReviewList list = ReviewList.EMPTY;
+            for (int r = 0; r < perProduct; r++) {
+                list = list.plus(new Review(Rating.values()[random.nextInt(6)], comments[random.nextInt(comments.length)]));
+            }
+            reviews.put(id, list);
+        }
+
+        ReviewIndex index = new ReviewIndex();
+        long start = System.nanoTime();
+        reviews.forEach(index::add);
+        System.out.printf("indexed %,d reviews in %d ms%n", (long) count * perProduct, (System.nanoTime() - start) / 1_000_000);
+        start = System.nanoTime();
+        for (int i = 0; i < added; i++) {
+            int id = random.nextInt(count + count / 20);
+            Review review = new Review(Rating.values()[random.nextInt(6)], comments[random.nextInt(comments.length)]);
+            index.add(id, List.of(review));
+            reviews.put(id, reviews.getOrDefault(id, ReviewList.EMPTY).plus(review));
+        }
+        System.out.printf("added %,d reviews, %.1f us each%n", added, (System.nanoTime() - start) / 1e3 / added);
+        Map<String, Number> metrics = new TreeMap<>();
+        index.addMetrics(metrics);
+        System.out.println(metrics);
+
+        List<ProductEntry> entries = new ArrayList<>(reviews.size());
+        reviews.forEach((id, list) -> entries.add(new ProductEntry(new Drink(id, "Drink " + id, BigDecimal.ONE, Rating.NOT_RATED), list)));
+        String[][] queries = {{"w1", "false"}, {"w1", "true"}, {"w2s", "false"}, {"wa", "true"}, {"w0\u00e9", "false"}, {"wzz", "false"}, {"w", "true"}};
+        Rating[][] ranges = {{Rating.NOT_RATED, Rating.FIVE_STAR}, {Rating.FOUR_STAR, Rating.FIVE_STAR}, {Rating.TWO_STAR, Rating.TWO_STAR}};
+        for (String[] query : queries) {
+            boolean prefix = Boolean.parseBoolean(query[1]);
+            for (Rating[] range : ranges) {
+                start = System.nanoTime();
+                ReviewIndex.Hits found = index.find(query[0], prefix, range[0], range[1]);
+                long indexed = System.nanoTime();
+                ReviewIndex.Hits scanned = ReviewIndex.scan(entries.stream(), ProductEntry::getReviews, query[0], prefix, range[0], range[1]);
+                long end = System.nanoTime();
+                boolean equal = found.size() == scanned.size();
+                for (int i = 0; equal && i < found.size(); i++) {
+                    equal = found.id(i) == scanned.id(i) && found.count(i) == scanned.count(i);
+                }
+                System.out.printf("%-4s prefix %-5b %d-%d: %6d products, index %7.2f ms, scan %7.1f ms, equal %b%n",
+                        query[0], prefix, range[0].ordinal(), range[1].ordinal(), found.size(),
+                        (indexed - start) / 1e6, (end - indexed) / 1e6, equal);
+            }
+        }
+    }
+}
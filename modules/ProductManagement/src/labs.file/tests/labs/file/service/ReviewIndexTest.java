@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import labs.pm.data.Drink;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Review counts found through the index, checked against scanning the
+ * reviews
+ *
+ * @author fabio
+ */
+public class ReviewIndexTest {
+
+    private static int[][] pairs(ReviewIndex.Hits hits) {
+        int[][] pairs = new int[hits.size()][];
+        for (int i = 0; i < hits.size(); i++) {
+            pairs[i] = new int[]{hits.id(i), hits.count(i)};
+        }
+        return pairs;
+    }
+
+    private static int[][] find(ReviewIndex index, String word, boolean prefix) {
+        return pairs(index.find(word, prefix, Rating.NOT_RATED, Rating.FIVE_STAR));
+    }
+
+    @Test
+    public void splitsCommentsIntoDistinctLowerCaseWords() {
+        assertArrayEquals(new String[]{"fine", "finest", "cake", "caf\u00e9", "42"},
+                ReviewIndex.words("Fine, fine FINEST cake! Caf\u00e9 42"));
+    }
+
+    @Test
+    public void findsThePrefixesWordsShare() {
+        assertEquals(Arrays.asList("f", "fi", "fin", "fine"),
+                ReviewIndex.sharedPrefixes(new String[]{"fine", "finest", "cake"}));
+        assertEquals(Arrays.asList("t", "te", "tea", "t", "te", "t"),
+                ReviewIndex.sharedPrefixes(new String[]{"tea", "tee", "to", "teas"}));
+    }
+
+    @Test
+    public void countsReviewsPerProduct() {
+        ReviewIndex index = new ReviewIndex();
+        index.add(101, List.of(new Review(Rating.FOUR_STAR, "Nice hot cup of tea"),
+                new Review(Rating.TWO_STAR, "Rather weak tea"),
+                new Review(Rating.FOUR_STAR, "Fine cup")));
+        index.add(103, List.of(new Review(Rating.FIVE_STAR, "Tea, tea and more tea")));
+        assertArrayEquals(new int[][]{{101, 2}, {103, 1}}, find(index, "tea", false));
+        assertArrayEquals(new int[][]{{101, 2}}, find(index, "cup", false));
+        assertArrayEquals(new int[][]{{101, 1}}, pairs(index.find("tea", false, Rating.ONE_STAR, Rating.THREE_STAR)));
+        assertArrayEquals(new int[0][], find(index, "coffee", false));
+    }
+
+    @Test
+    public void countsAReviewOnceForAPrefix() {
+        ReviewIndex index = new ReviewIndex();
+        index.add(1, List.of(new Review(Rating.FOUR_STAR, "Fine fine finest cake"),
+                new Review(Rating.TWO_STAR, "fin")));
+        assertArrayEquals(new int[][]{{1, 2}}, find(index, "fin", true));
+        assertArrayEquals(new int[][]{{1, 1}}, find(index, "fine", true));
+        assertArrayEquals(new int[][]{{1, 1}}, find(index, "finest", true));
+        assertArrayEquals(new int[][]{{1, 2}}, find(index, "f", true));
+        assertArrayEquals(new int[][]{{1, 1}}, pairs(index.find("fi", true, Rating.FOUR_STAR, Rating.FIVE_STAR)));
+    }
+
+    @Test
+    public void matchesScanningTheReviews() {
+        Random random = new Random(7);
+        String[] vocabulary = new String[300];
+        for (int i = 0; i < vocabulary.length; i++) {
+            vocabulary[i] = "w" + Integer.toString(i, 36) + ((i % 3 == 0) ? "\u00e9" : "");
+        }
+        ReviewIndex index = new ReviewIndex();
+        Map<Integer, List<Review>> reviews = new TreeMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            // mostly the newest products, some older ones out of order
+            int id = (i < 10_000) ? i / 5 : random.nextInt(2_500);
+            StringBuilder comment = new StringBuilder();
+            for (int w = 3 + random.nextInt(6); w > 0; w--) {
+                comment.append(vocabulary[(int) Math.min(vocabulary.length - 1, Math.abs(random.nextGaussian()) * 60)].toUpperCase()).append(' ');
+            }
+            Review review = new Review(Rating.values()[random.nextInt(6)], comment.toString());
+            if (i % 2 == 0) {
+                index.add(id, List.of(review));
+            } else {
+                index.add(id, ReviewList.of(List.of(review)));
+            }
+            reviews.computeIfAbsent(id, key -> new ArrayList<>()).add(review);
+        }
+        List<ProductEntry> entries = new ArrayList<>();
+        reviews.forEach((id, list) -> entries.add(new ProductEntry(new Drink(id, "Tea", BigDecimal.ONE, Rating.NOT_RATED), list)));
+        for (String word : new String[]{"w1", "w1\u00e9", "wa", "w", "w0\u00e9", "wzz"}) {
+            for (boolean prefix : new boolean[]{false, true}) {
+                for (Rating[] range : new Rating[][]{{Rating.NOT_RATED, Rating.FIVE_STAR}, {Rating.FOUR_STAR, Rating.FIVE_STAR}, {Rating.TWO_STAR, Rating.TWO_STAR}}) {
+                    assertArrayEquals(word + " " + prefix + " " + range[0] + "-" + range[1],
+                            pairs(ReviewIndex.scan(entries.stream(), ProductEntry::getReviews, word, prefix, range[0], range[1])),
+                            pairs(index.find(word, prefix, range[0], range[1])));
+                }
+            }
+        }
+    }
+}
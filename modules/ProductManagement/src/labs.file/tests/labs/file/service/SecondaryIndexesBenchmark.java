@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import static java.math.RoundingMode.HALF_UP;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+
+/**
+ * Price, best before and rating range queries answered by scanning the
+ * catalogue and by its secondary indexes, and the cost the indexes add
+ * to writes. SecondaryIndexesTest checks that both find the same
+ * products.
+ * <p>
+ * Arguments: number of products (1000000), writes (20000), rounds (5)
+ *
+ * @author fabio
+ */
+public class SecondaryIndexesBenchmark {
+
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int writes = (args.length > 1) ? Integer.parseInt(args[1]) : 20_000;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        Random random = new Random(1);
+        LocalDate today = LocalDate.now();
+        List<ProductEntry> entries = new ArrayList<>(count);
+        for (int id = 0; id < count; id++) {
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(100_000), (random.nextInt(10) == 0) ? 3 : 2);
+            Rating rating = Rating.values()[random.nextInt(6)];
+            Product product = (id % 2 == 0)
+                    ? new Food(id, "Food " + id, price, rating, today.plusDays(random.nextInt(365)))
+                    : new Drink(id, "Drink " + id, price, rating);
+            entries.add(new ProductEntry(product, Collections.emptyList()));
+        }
+        Catalogue catalogue = new Catalogue(64);
+        long start = System.nanoTime();
+        catalogue.replace(entries.stream());
+        System.out.printf("loaded %,d products with their indexes in %d ms%n", count, (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        for (int write = 0; write < writes; write++) {
+            int id = random.nextInt(count + count / 10);
+            Lock lock = catalogue.writeLock(id);
+            try {
+                lock.lock();
+                ProductEntry entry = catalogue.snapshot().get(id);
+                Product product = (entry == null)
+                        ? new Drink(id, "Drink " + id, BigDecimal.valueOf(random.nextInt(100_000), 2), Rating.NOT_RATED)
+                        : entry.getProduct().applyRating(Rating.values()[random.nextInt(6)]);
+                catalogue.put(id, new ProductEntry(product, Collections.emptyList()));
+            } finally {
+                lock.unlock();
+            }
+        }
+        System.out.printf("%,d writes %.1f us each, indexes %,d bytes%n", writes, (System.nanoTime() - start) / 1e3 / writes,
+                catalogue.snapshot().estimateIndexBytes());
+
+        CatalogueVersion version = catalogue.snapshot();
+        BigDecimal low = new BigDecimal("100.004");
+        BigDecimal high = new BigDecimal("101.005");
+        long lowMinor = low.setScale(Product.MONEY_SCALE, HALF_UP).unscaledValue().longValueExact();
+        long highMinor = high.setScale(Product.MONEY_SCALE, HALF_UP).unscaledValue().longValueExact();
+        long firstDay = today.toEpochDay();
+        long lastDay = today.plusDays(7).toEpochDay();
+        for (int round = 0; round < rounds; round++) {
+            start = System.nanoTime();
+            List<Integer> priceScan = version.values()
+                    .map(ProductEntry::getProduct)
+                    .filter(product -> product.getPrice().compareTo(low) >= 0 && product.getPrice().compareTo(high) <= 0)
+                    .sorted(Comparator.comparing(Product::getPriceMinor).thenComparing(Product::getId))
+                    .map(Product::getId)
+                    .collect(Collectors.toList());
+            long priceScanned = System.nanoTime();
+            // the index holds minor units, the boundary cents still need the exact price
+            List<Integer> priceIndexed = version.range(IndexKey.PRICE, lowMinor, highMinor).stream()
+                    .map(ProductEntry::getProduct)
+                    .filter(product -> (product.getPriceMinor() != lowMinor || product.getPrice().compareTo(low) >= 0)
+                    && (product.getPriceMinor() != highMinor || product.getPrice().compareTo(high) <= 0))
+                    .map(Product::getId)
+                    .collect(Collectors.toList());
+            long priceIndexedEnd = System.nanoTime();
+            List<Integer> dateScan = version.values()
+                    .map(ProductEntry::getProduct)
+                    .filter(product -> product instanceof Food
+                    && product.getBestBefore().toEpochDay() >= firstDay && product.getBestBefore().toEpochDay() <= lastDay)
+                    .map(Product::getId)
+                    .sorted()
+                    .collect(Collectors.toList());
+            long dateScanned = System.nanoTime();
+            List<Integer> dateIndexed = version.range(IndexKey.BEST_BEFORE, firstDay, lastDay).stream()
+                    .map(entry -> entry.getProduct().getId())
+                    .sorted()
+                    .collect(Collectors.toList());
+            long dateIndexedEnd = System.nanoTime();
+            long ratingScan = version.values().filter(entry -> entry.getProduct().getRating() == Rating.FIVE_STAR).count();
+            long ratingScanned = System.nanoTime();
+            int ratingIndexed = version.count(IndexKey.RATING, Rating.FIVE_STAR.ordinal(), Rating.FIVE_STAR.ordinal());
+            long ratingIndexedEnd = System.nanoTime();
+            System.out.printf("price %d/%d: scan %.1f ms index %.2f ms | 7 days %d/%d: scan %.1f ms index %.2f ms"
+                    + " | five stars %d/%d: scan %.1f ms index %.3f ms%n",
+                    priceScan.size(), priceIndexed.size(), (priceScanned - start) / 1e6, (priceIndexedEnd - priceScanned) / 1e6,
+                    dateScan.size(), dateIndexed.size(), (dateScanned - priceIndexedEnd) / 1e6, (dateIndexedEnd - dateScanned) / 1e6,
+                    ratingScan, ratingIndexed, (ratingScanned - dateIndexedEnd) / 1e6, (ratingIndexedEnd - ratingScanned) / 1e6);
+        }
+    }
+}
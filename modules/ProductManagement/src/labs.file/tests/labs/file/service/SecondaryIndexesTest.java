@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Range queries answered by the secondary indexes find the same products
+ * as scanning the catalogue, after a load and after writes
+ *
+ * @author fabio
+ */
+public class SecondaryIndexesTest {
+
+    private static final int COUNT = 20_000;
+    private static final LocalDate TODAY = LocalDate.of(2021, 5, 1);
+
+    private final Random random = new Random(1);
+    private Catalogue catalogue;
+
+    private Product product(int id) {
+        BigDecimal price = BigDecimal.valueOf(random.nextInt(10_000), (random.nextInt(10) == 0) ? 3 : 2);
+        Rating rating = Rating.values()[random.nextInt(6)];
+        return (random.nextBoolean())
+                ? new Food(id, "Food " + id, price, rating, TODAY.plusDays(random.nextInt(60)))
+                : new Drink(id, "Drink " + id, price, rating);
+    }
+
+    @Before
+    public void setUp() {
+        List<ProductEntry> entries = new ArrayList<>(COUNT);
+        for (int id = 0; id < COUNT; id++) {
+            entries.add(new ProductEntry(product(id), Collections.emptyList()));
+        }
+        catalogue = new Catalogue(4);
+        catalogue.replace(entries.stream());
+    }
+
+    private void write(int id, Product product) {
+        Lock lock = catalogue.writeLock(id);
+        try {
+            lock.lock();
+            catalogue.put(id, new ProductEntry(product, Collections.emptyList()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void assertSameAsScan(IndexKey key, long from, long to) {
+        CatalogueVersion version = catalogue.snapshot();
+        List<Integer> scanned = version.values()
+                .map(ProductEntry::getProduct)
+                .filter(product -> key.indexes(product) && key.of(product) >= from && key.of(product) <= to)
+                .sorted(Comparator.<Product>comparingLong(key::of).thenComparingInt(Product::getId))
+                .map(Product::getId)
+                .collect(Collectors.toList());
+        List<Integer> indexed = version.range(key, from, to).stream()
+                .map(entry -> entry.getProduct().getId())
+                .collect(Collectors.toList());
+        String range = key + " " + from + ".." + to;
+        assertEquals(range, scanned, indexed);
+        assertEquals(range, scanned.size(), version.count(key, from, to));
+    }
+
+    private void assertAllKeysSameAsScan() {
+        for (int i = 0; i < 20; i++) {
+            long price = random.nextInt(10_000);
+            assertSameAsScan(IndexKey.PRICE, price, price + random.nextInt(500));
+            long day = TODAY.toEpochDay() + random.nextInt(60);
+            assertSameAsScan(IndexKey.BEST_BEFORE, day, day + random.nextInt(7));
+        }
+        assertSameAsScan(IndexKey.PRICE, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertSameAsScan(IndexKey.PRICE, 5_000, 4_999);
+        for (Rating from : Rating.values()) {
+            for (Rating to : Rating.values()) {
+                assertSameAsScan(IndexKey.RATING, from.ordinal(), to.ordinal());
+            }
+        }
+        assertSameAsScan(IndexKey.TYPE, ProductColumns.FOOD, ProductColumns.FOOD);
+        assertSameAsScan(IndexKey.TYPE, ProductColumns.DRINK, ProductColumns.DRINK);
+        assertSameAsScan(IndexKey.TYPE, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void agreesWithAScanAfterLoading() {
+        assertEquals(COUNT, catalogue.snapshot().size());
+        assertAllKeysSameAsScan();
+    }
+
+    @Test
+    public void agreesWithAScanAfterWrites() {
+        for (int write = 0; write < 5_000; write++) {
+            int id = random.nextInt(COUNT + COUNT / 2);
+            ProductEntry entry = catalogue.snapshot().get(id);
+            if (entry != null && random.nextBoolean()) {
+                write(id, entry.getProduct().applyRating(Rating.values()[random.nextInt(6)]));
+            } else {
+                write(id, product(id));
+            }
+        }
+        assertTrue(catalogue.snapshot().size() > COUNT);
+        assertAllKeysSameAsScan();
+    }
+}
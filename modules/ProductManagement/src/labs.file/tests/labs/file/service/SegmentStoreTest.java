@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Products and reviews written to segments read back in order
+ *
+ * @author fabio
+ */
+public class SegmentStoreTest {
+
+    private static final String FILE_NAME = "segment{0}.dat";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path folder;
+    private final List<String> replayed = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        folder = temp.getRoot().toPath();
+    }
+
+    private SegmentStore open(long segmentSize) throws IOException {
+        replayed.clear();
+        SegmentStore store = new SegmentStore(folder, FILE_NAME, segmentSize);
+        store.open(product -> replayed.add(product.toString()), (review, id) -> replayed.add(id + " " + review));
+        return store;
+    }
+
+    private List<String> fill(SegmentStore store) throws IOException {
+        List<String> written = new ArrayList<>();
+        Product tea = new Drink(101, "Tea", new BigDecimal("1.99"), Rating.NOT_RATED);
+        Product cake = new Food(102, "Cake", new BigDecimal("3.99"), Rating.NOT_RATED, LocalDate.of(2021, 5, 1));
+        store.append(tea);
+        written.add(tea.toString());
+        store.append(cake);
+        written.add(cake.toString());
+        for (int i = 0; i < 20; i++) {
+            int id = (i % 3 == 0) ? 102 : 101;
+            Review review = new Review(Rating.values()[i % 6], "Comment " + i + " \u00e0 la carte \u2605");
+            store.append(id, review);
+            written.add(id + " " + review);
+        }
+        store.force();
+        return written;
+    }
+
+    private static List<String> strings(List<Review> reviews) {
+        return reviews.stream().map(Review::toString).collect(Collectors.toList());
+    }
+
+    @Test
+    public void replaysTheRecordsInOrder() throws IOException {
+        List<String> written = fill(open(128));
+        assertTrue(Files.exists(folder.resolve("segment2.dat")));
+        open(128);
+        assertEquals(written, replayed);
+    }
+
+    @Test
+    public void readsTheOldestReviewsOfAProduct() throws IOException {
+        List<String> written = fill(open(128));
+        SegmentStore store = open(128);
+        List<String> cake = written.stream()
+                .filter(record -> record.startsWith("102 "))
+                .map(record -> record.substring(4))
+                .collect(Collectors.toList());
+        assertEquals(cake, strings(store.readReviews(102, cake.size())));
+        assertEquals(cake.subList(0, 3), strings(store.readReviews(102, 3)));
+        assertTrue(store.readReviews(103, 5).isEmpty());
+    }
+
+    @Test
+    public void keepsAppendingAfterReopening() throws IOException {
+        List<String> written = fill(open(128));
+        SegmentStore store = open(128);
+        Review review = new Review(Rating.FIVE_STAR, "Still fine");
+        store.append(101, review);
+        written.add("101 " + review);
+        open(128);
+        assertEquals(written, replayed);
+    }
+
+    @Test
+    public void cutsATornRecordOffTheLastSegment() throws IOException {
+        List<String> written = fill(open(1024 * 1024));
+        Path segment = folder.resolve("segment0.dat");
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(7).putInt(0, 40));
+        }
+        open(1024 * 1024);
+        assertEquals(written, replayed);
+        assertEquals(size, Files.size(segment));
+    }
+
+    @Test
+    public void refusesToOpenADamagedEarlierSegment() throws IOException {
+        fill(open(128));
+        Path segment = folder.resolve("segment0.dat");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), Integer.BYTES);
+        }
+        long size = Files.size(segment);
+        try {
+            open(128);
+            fail("A damaged segment followed by another one cannot be cut short");
+        } catch (IOException ex) {
+            assertEquals(size, Files.size(segment));
+        }
+    }
+
+    @Test
+    public void discardsAnImportThatDidNotFinish() throws IOException {
+        SegmentStore store = open(128);
+        store.beginImport();
+        fill(store);
+        assertTrue(open(128).isEmpty());
+        assertTrue(replayed.isEmpty());
+
+        store = open(128);
+        store.beginImport();
+        List<String> written = fill(store);
+        store.endImport();
+        open(128);
+        assertEquals(written, replayed);
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesReviewsOfUnknownProducts() throws IOException {
+        open(128).append(103, new Review(Rating.ONE_STAR, "Which one?"));
+    }
+}
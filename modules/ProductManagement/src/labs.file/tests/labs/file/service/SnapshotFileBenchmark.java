@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Time and size of dumping and restoring the catalogue with Java
+ * serialization of the product map, as dumpData and restoreData used to,
+ * and with {@link SnapshotFile}.
+ * <p>
+ * Arguments: number of products (100000), reviews per product (5),
+ * rounds (5)
+ *
+ * @author fabio
+ */
+public class SnapshotFileBenchmark {
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        int reviewCount = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        Random random = new Random(7);
+        List<ProductEntry> entries = new ArrayList<>(count);
+        Map<Product, List<Review>> products = new HashMap<>();
+        for (int id = 0; id < count; id++) {
+            BigDecimal price = BigDecimal.valueOf(random.nextInt(100_000), 2);
+            Product product = (id % 2 == 0)
+                    ? new Food(id, "Food " + id, price, Rating.NOT_RATED, LocalDate.of(2021, 1, 1).plusDays(random.nextInt(365)))
+                    : new Drink(id, "Drink " + id, price, Rating.NOT_RATED);
+            List<Review> reviews = new ArrayList<>(reviewCount);
+            for (int r = 0; r < reviewCount; r++) {
+                reviews.add(new Review(Rating.values()[random.nextInt(6)], "Review comment number " + random.nextInt(5000)));
+            }
+            entries.add(new ProductEntry(product, reviews));
+            products.put(product, reviews);
+        }
+        Path folder = Files.createTempDirectory("snapshots");
+        Path serialized = folder.resolve("serialized.tmp");
+        Path snapshot = folder.resolve("snapshot.tmp");
+        try {
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(serialized))) {
+                    out.writeObject(products);
+                }
+                long written = System.nanoTime();
+                try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(serialized))) {
+                    in.readObject();
+                }
+                long read = System.nanoTime();
+                long bytes = SnapshotFile.write(snapshot, SnapshotFile.FULL, round, 0, entries.iterator(), ProductEntry::getReviews, entry -> 0);
+                long snapshotWritten = System.nanoTime();
+                int restored = SnapshotFile.read(snapshot, null, false).size();
+                long snapshotRead = System.nanoTime();
+                System.out.printf("serialization write %5d ms read %5d ms %,12d B | snapshot write %5d ms read %5d ms %,12d B (%d products)%n",
+                        (written - start) / 1_000_000, (read - written) / 1_000_000, Files.size(serialized),
+                        (snapshotWritten - read) / 1_000_000, (snapshotRead - snapshotWritten) / 1_000_000, bytes, restored);
+            }
+        } finally {
+            Files.deleteIfExists(serialized);
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(folder);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Snapshots read back as written, and damaged ones rejected
+ *
+ * @author fabio
+ */
+public class SnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path file;
+
+    @Before
+    public void setUp() {
+        file = temp.getRoot().toPath().resolve("snapshot1.tmp");
+    }
+
+    private static List<ProductEntry> entries(int count, int reviews) {
+        List<ProductEntry> entries = new ArrayList<>(count);
+        for (int id = 0; id < count; id++) {
+            Product product = (id % 2 == 0)
+                    ? new Food(id, "Cake " + id, BigDecimal.valueOf(id * 7L + 1, 2), Rating.NOT_RATED, LocalDate.of(2021, 5, 1).plusDays(id))
+                    : new Drink(id, "Tea " + id, BigDecimal.valueOf(id * 13L + 5, 3), Rating.NOT_RATED);
+            List<Review> list = new ArrayList<>();
+            for (int r = 0; r < (id % (reviews + 1)); r++) {
+                list.add(new Review(Rating.values()[(id + r) % 6], "Review " + r + " of product " + id + " \u00e0 la carte \u2605"));
+            }
+            entries.add(new ProductEntry(product, list).rated());
+        }
+        return entries;
+    }
+
+    private static List<String> strings(List<ProductEntry> entries) {
+        return entries.stream()
+                .map(entry -> entry.getProduct() + " " + entry.getReviews())
+                .collect(Collectors.toList());
+    }
+
+    private long write(List<ProductEntry> entries) throws IOException {
+        return SnapshotFile.write(file, SnapshotFile.FULL, 7, 3, entries.iterator(), ProductEntry::getReviews, entry -> 0);
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        List<ProductEntry> entries = entries(50, 4);
+        long size = write(entries);
+        assertEquals(Files.size(file), size);
+        assertEquals(strings(entries), strings(SnapshotFile.read(file, null, false)));
+    }
+
+    @Test
+    public void keepsTheOrderAcrossBlocks() throws IOException {
+        List<ProductEntry> entries = entries(20_000, 8);
+        assertTrue(write(entries) > 2L * SnapshotFile.BLOCK_SIZE);
+        assertEquals(strings(entries), strings(SnapshotFile.read(file, null, false)));
+    }
+
+    @Test
+    public void leavesTheStoredReviewsOutWhenLazy() throws IOException {
+        List<ProductEntry> entries = entries(50, 4);
+        SnapshotFile.write(file, SnapshotFile.FULL, 7, 3, entries.iterator(), ProductEntry::getReviews,
+                entry -> entry.getReviews().size() / 2);
+        List<ProductEntry> restored = SnapshotFile.read(file, null, true);
+        assertEquals(entries.size(), restored.size());
+        for (int i = 0; i < entries.size(); i++) {
+            ProductEntry entry = entries.get(i);
+            ProductEntry lazy = restored.get(i);
+            int stored = entry.getReviews().size() / 2;
+            assertEquals(entry.getProduct().toString(), lazy.getProduct().toString());
+            assertEquals(stored, lazy.getStoredReviews());
+            assertEquals(entry.getReviews().subList(stored, entry.getReviews().size()).toString(),
+                    lazy.getReviews().toString());
+            for (Rating rating : Rating.values()) {
+                assertEquals(entry.getRatings().getCount(rating), lazy.getRatings().getCount(rating));
+            }
+        }
+        assertEquals(strings(entries), strings(SnapshotFile.read(file, null, false)));
+    }
+
+    @Test
+    public void readsAnEmptySnapshot() throws IOException {
+        write(new ArrayList<>());
+        assertTrue(SnapshotFile.read(file, null, false).isEmpty());
+    }
+
+    @Test
+    public void keepsTheHeader() throws IOException {
+        SnapshotFile.write(file, SnapshotFile.DELTA, 42, 9, entries(3, 1).iterator(), ProductEntry::getReviews, entry -> 0);
+        SnapshotFile.Header header = SnapshotFile.readHeader(file);
+        assertFalse(header.isFull());
+        assertEquals(42, header.getSequence());
+        assertEquals(9, header.getGeneration());
+        assertEquals(file, header.getFile());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFailedChecksum() throws IOException {
+        write(entries(50, 4));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = ByteBuffer.allocate(1);
+            channel.read(data, 100);
+            data.put(0, (byte) (data.get(0) ^ 0x55));
+            channel.write(data.rewind(), 100);
+        }
+        SnapshotFile.read(file, null, false);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsATruncatedSnapshot() throws IOException {
+        long size = write(entries(50, 4));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 10);
+        }
+        SnapshotFile.read(file, null, false);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOlderVersions() throws IOException {
+        write(entries(5, 1));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Short.BYTES).putShort(0, (short) (SnapshotFile.VERSION - 1)), Integer.BYTES);
+        }
+        SnapshotFile.read(file, null, false);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        Files.writeString(file, "101,Tea,1.99,0,D,2021-05-01");
+        SnapshotFile.readHeader(file);
+    }
+}
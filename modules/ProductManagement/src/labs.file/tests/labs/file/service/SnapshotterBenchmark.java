@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+import labs.pm.data.Drink;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Latency of writers while the catalogue is snapshotted, with every
+ * writer blocked for the whole snapshot and with {@link Snapshotter},
+ * which only blocks them to roll the write ahead log and pin a version,
+ * the size and time of its full and delta snapshots, and the time to
+ * restore the catalogue from them.
+ * <p>
+ * Arguments: number of products (100000), writer threads (4), snapshots
+ * per run (5), a full snapshot every this many (4)
+ *
+ * @author fabio
+ */
+public class SnapshotterBenchmark {
+
+    private final Catalogue products = new Catalogue(64);
+    private final WriteAheadLog wal;
+    private final Snapshotter snapshots;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAccumulator maxWriteNanos = new LongAccumulator(Math::max, 0);
+    private final int count;
+
+    private SnapshotterBenchmark(Path folder, int count, int fullEvery) throws IOException {
+        this.count = count;
+        Random random = new Random(7);
+        List<ProductEntry> entries = new ArrayList<>(count);
+        for (int id = 0; id < count; id++) {
+            List<Review> reviews = new ArrayList<>();
+            for (int r = 0; r < 5; r++) {
+                reviews.add(new Review(Rating.values()[random.nextInt(6)], "Review comment number " + random.nextInt(5000)));
+            }
+            entries.add(new ProductEntry(new Drink(id, "Drink " + id, BigDecimal.valueOf(random.nextInt(100_000), 2), Rating.NOT_RATED), reviews).rated());
+        }
+        products.replace(entries.stream());
+        wal = new WriteAheadLog(folder.resolve("wal"), "products{0}.wal", 0);
+        wal.open(0, product -> { }, (review, id) -> { });
+        snapshots = new Snapshotter(products, wal, ProductEntry::getReviews, null, false,
+                folder.resolve("snapshots"), "snapshot{0}.tmp", 2, fullEvery, 0);
+    }
+
+    private void write() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!stopped.get()) {
+            int id = random.nextInt(count);
+            Review review = new Review(Rating.values()[random.nextInt(6)], "Review comment number " + random.nextInt(5000));
+            long start = System.nanoTime();
+            Lock lock = products.writeLock(id);
+            try {
+                lock.lock();
+                wal.commit(wal.append(id, review));
+                products.put(id, products.snapshot().get(id).review(review));
+                snapshots.markDirty(id);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                lock.unlock();
+            }
+            long nanos = System.nanoTime() - start;
+            snapshots.recordWrite(nanos);
+            writes.increment();
+            writeNanos.add(nanos);
+            maxWriteNanos.accumulate(nanos);
+        }
+    }
+
+    private interface Snapshot {
+
+        String take() throws IOException;
+    }
+
+    private void run(String name, int rounds, Snapshot snapshot) throws Exception {
+        writes.reset();
+        writeNanos.reset();
+        maxWriteNanos.reset();
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            Thread.sleep(200);
+            System.out.println("  " + snapshot.take());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %.0f writes/s, write latency mean %.0f us max %.1f ms%n", name, writes.sum() / seconds,
+                writeNanos.sum() / 1e3 / Math.max(writes.sum(), 1), maxWriteNanos.get() / 1e6);
+    }
+
+    private static long reviews(Catalogue catalogue) {
+        return catalogue.snapshot().values().mapToLong(entry -> entry.getReviews().size()).sum();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        int fullEvery = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+        Path folder = Files.createTempDirectory("snapshots");
+        try {
+            SnapshotterBenchmark benchmark = new SnapshotterBenchmark(folder, count, fullEvery);
+            List<Thread> writers = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                writers.add(new Thread(benchmark::write, "writer-" + thread));
+            }
+            writers.forEach(Thread::start);
+
+            Path blocking = folder.resolve("blocking.tmp");
+            benchmark.run("blocking", rounds, () -> {
+                long start = System.nanoTime();
+                long bytes;
+                benchmark.products.lockAll();
+                try {
+                    bytes = SnapshotFile.write(blocking, SnapshotFile.FULL, 0, 0,
+                            benchmark.products.snapshot().values().iterator(), ProductEntry::getReviews, entry -> 0);
+                } finally {
+                    benchmark.products.unlockAll();
+                }
+                return String.format("%,d bytes, writers paused for all of it, %d ms",
+                        bytes, (System.nanoTime() - start) / 1_000_000);
+            });
+            Files.delete(blocking);
+
+            benchmark.run("snapshotter", rounds, () -> {
+                Path file = benchmark.snapshots.snapshot();
+                Map<String, Number> metrics = new HashMap<>();
+                benchmark.snapshots.addMetrics(metrics);
+                return String.format("%-5s %,d bytes in %d ms, writers paused %d us",
+                        SnapshotFile.readHeader(file).isFull() ? "full" : "delta", metrics.get("snapshot.last.bytes"),
+                        metrics.get("snapshot.last.duration.ms"), metrics.get("snapshot.last.pause.us"));
+            });
+
+            benchmark.stopped.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            benchmark.snapshots.snapshot();
+
+            Catalogue restored = new Catalogue(64);
+            long start = System.nanoTime();
+            int generation = new Snapshotter(restored, null, ProductEntry::getReviews, null, false,
+                    folder.resolve("snapshots"), "snapshot{0}.tmp", 2, fullEvery, 0).restore();
+            long nanos = System.nanoTime() - start;
+            System.out.printf("restored %d products with %d reviews in %d ms, log from generation %d; same reviews %b%n",
+                    restored.snapshot().size(), reviews(restored), nanos / 1_000_000, generation,
+                    reviews(restored) == reviews(benchmark.products));
+        } finally {
+            try (Stream<Path> files = Files.walk(folder)) {
+                for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+}
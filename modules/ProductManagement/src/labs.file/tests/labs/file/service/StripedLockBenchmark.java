@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import labs.pm.data.Drink;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Throughput of reviews and lookups from many threads, half of them
+ * writing, with one global read write lock as the catalogue used to have
+ * and with the per stripe write locks and lock free reads. Every write
+ * holds its lock a while longer, as it does waiting for the write ahead
+ * log to commit.
+ * <p>
+ * Arguments: number of products (100000), milliseconds per run (2000),
+ * microseconds a write holds its lock (50)
+ *
+ * @author fabio
+ */
+public class StripedLockBenchmark {
+
+    private static final int[] THREADS = {2, 8, 32};
+
+    public static void main(String[] args) throws Exception {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        long millis = (args.length > 1) ? Long.parseLong(args[1]) : 2000;
+        long holdNanos = ((args.length > 2) ? Long.parseLong(args[2]) : 50) * 1000;
+        List<ProductEntry> entries = new ArrayList<>(count);
+        for (int id = 0; id < count; id++) {
+            entries.add(new ProductEntry(new Drink(id, "Drink " + id, BigDecimal.ONE, Rating.NOT_RATED),
+                    Collections.emptyList()));
+        }
+        Catalogue catalogue = new Catalogue(64);
+        catalogue.replace(entries.stream());
+        Review review = new Review(Rating.FOUR_STAR, "Nice");
+
+        ReadWriteLock global = new ReentrantReadWriteLock();
+        for (int threads : THREADS) {
+            run("global ", threads, millis, id -> {
+                Lock lock = global.writeLock();
+                try {
+                    lock.lock();
+                    catalogue.put(id, catalogue.snapshot().get(id).review(review));
+                    LockSupport.parkNanos(holdNanos);
+                } finally {
+                    lock.unlock();
+                }
+            }, id -> {
+                Lock lock = global.readLock();
+                try {
+                    lock.lock();
+                    return catalogue.snapshot().get(id);
+                } finally {
+                    lock.unlock();
+                }
+            }, count);
+            run("striped", threads, millis, id -> {
+                Lock lock = catalogue.writeLock(id);
+                try {
+                    lock.lock();
+                    catalogue.put(id, catalogue.snapshot().get(id).review(review));
+                    LockSupport.parkNanos(holdNanos);
+                } finally {
+                    lock.unlock();
+                }
+            }, id -> catalogue.snapshot().get(id), count);
+        }
+    }
+
+    private interface Write {
+
+        void write(int id);
+    }
+
+    private interface Read {
+
+        ProductEntry read(int id);
+    }
+
+    private static void run(String mode, int threads, long millis, Write write, Read read, int count) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            LongAdder writes = new LongAdder();
+            LongAdder reads = new LongAdder();
+            long end = System.nanoTime() + millis * 1_000_000;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                boolean writer = thread % 2 == 0;
+                tasks.add(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < end) {
+                        int id = random.nextInt(count);
+                        if (writer) {
+                            write.write(id);
+                            writes.increment();
+                        } else if (read.read(id) != null) {
+                            reads.increment();
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+            System.out.printf("%s %2d threads %9.0f writes/s %12.0f reads/s%n", mode, threads,
+                    writes.sum() * 1000.0 / millis, reads.sum() * 1000.0 / millis);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import labs.pm.data.Drink;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Throughput of durable writes from many threads, forcing the file once
+ * per write and with the group commit of {@link WriteAheadLog} at a few
+ * commit windows.
+ * <p>
+ * Arguments: writes per run (4000), then the commit windows in
+ * microseconds (0 200)
+ *
+ * @author fabio
+ */
+public class WriteAheadLogBenchmark {
+
+    private static final int[] THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws Exception {
+        int writes = (args.length > 0) ? Integer.parseInt(args[0]) : 4000;
+        long[] windows = (args.length > 1)
+                ? Stream.of(args).skip(1).mapToLong(Long::parseLong).toArray()
+                : new long[]{0, 200};
+        Path folder = Files.createTempDirectory("wal");
+        try {
+            for (int threads : THREADS) {
+                Path file = folder.resolve("forced.wal");
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    long nanos = run(threads, writes, id -> {
+                        ByteBuffer record = ByteBuffer.allocate(64);
+                        record.putInt(id).put("Review of a product".getBytes(StandardCharsets.UTF_8)).flip();
+                        synchronized (channel) {
+                            channel.write(record);
+                            channel.force(false);
+                        }
+                    });
+                    System.out.printf("%2d threads forced each write  %8.0f writes/s%n", threads, writes * 1e9 / nanos);
+                }
+                Files.delete(file);
+                for (long window : windows) {
+                    WriteAheadLog wal = new WriteAheadLog(folder, "window" + window + "-{0}.wal", window);
+                    wal.open(0, product -> { }, (review, id) -> { });
+                    long nanos = run(threads, writes, id -> {
+                        if (id % 2 == 0) {
+                            wal.commit(wal.append(new Drink(id, "Tea", BigDecimal.ONE, Rating.NOT_RATED)));
+                        } else {
+                            wal.commit(wal.append(id - 1, new Review(Rating.FOUR_STAR, "Review of a product")));
+                        }
+                    });
+                    System.out.printf("%2d threads window %5d us     %8.0f writes/s, %.1f writes per commit%n",
+                            threads, window, writes * 1e9 / nanos, (double) wal.getRecords() / wal.getCommits());
+                    Files.delete(folder.resolve("window" + window + "-0.wal"));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(folder);
+        }
+    }
+
+    private interface Write {
+
+        void write(int id) throws IOException;
+    }
+
+    private static long run(int threads, int writes, Write write) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            int perThread = writes / threads;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                int from = thread * perThread;
+                tasks.add(() -> {
+                    for (int id = from; id < from + perThread; id++) {
+                        write.write(id);
+                    }
+                    return null;
+                });
+            }
+            long start = System.nanoTime();
+            for (Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
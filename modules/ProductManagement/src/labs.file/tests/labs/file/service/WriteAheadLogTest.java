@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Committed records replayed in order across log generations
+ *
+ * @author fabio
+ */
+public class WriteAheadLogTest {
+
+    private static final String FILE_NAME = "products{0}.wal";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private Path folder;
+    private final List<String> replayed = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        folder = temp.getRoot().toPath();
+    }
+
+    private WriteAheadLog open(int from) throws IOException {
+        replayed.clear();
+        WriteAheadLog wal = new WriteAheadLog(folder, FILE_NAME, 0);
+        int count = wal.open(from, product -> replayed.add(product.toString()), (review, id) -> replayed.add(id + " " + review));
+        assertEquals(replayed.size(), count);
+        return wal;
+    }
+
+    private static List<String> log(WriteAheadLog wal, int from, int to) throws IOException {
+        List<String> written = new ArrayList<>();
+        for (int id = from; id < to; id++) {
+            Product product = (id % 2 == 0)
+                    ? new Food(id, "Cake " + id, BigDecimal.valueOf(id, 2), Rating.NOT_RATED, LocalDate.of(2021, 5, 1))
+                    : new Drink(id, "Tea " + id, BigDecimal.valueOf(id, 3), Rating.NOT_RATED);
+            wal.commit(wal.append(product));
+            written.add(product.toString());
+            Review review = new Review(Rating.values()[id % 6], "Review of " + id + " \u00e0 la carte");
+            wal.commit(wal.append(id, review));
+            written.add(id + " " + review);
+        }
+        return written;
+    }
+
+    @Test
+    public void replaysCommittedRecordsInOrder() throws IOException {
+        List<String> written = log(open(0), 0, 10);
+        open(0);
+        assertEquals(written, replayed);
+    }
+
+    @Test
+    public void keepsAppendingAfterReplay() throws IOException {
+        List<String> written = log(open(0), 0, 5);
+        written.addAll(log(open(0), 5, 10));
+        open(0);
+        assertEquals(written, replayed);
+    }
+
+    @Test
+    public void replaysFromAGeneration() throws IOException {
+        WriteAheadLog wal = open(0);
+        List<String> written = log(wal, 0, 5);
+        assertEquals(1, wal.roll());
+        List<String> rolled = log(wal, 5, 10);
+        assertEquals(2, wal.roll());
+        rolled.addAll(log(wal, 10, 12));
+        written.addAll(rolled);
+
+        open(0);
+        assertEquals(written, replayed);
+        open(1);
+        assertEquals(rolled, replayed);
+    }
+
+    @Test
+    public void commitsConcurrentWritersInGroups() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(folder, FILE_NAME, 200);
+        wal.open(0, product -> { }, (review, id) -> { });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int writer = 0; writer < 8; writer++) {
+                int from = writer * 50;
+                writers.add(executor.submit(() -> log(wal, from, from + 50)));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(800, wal.getRecords());
+        assertTrue(wal.getCommits() <= wal.getRecords());
+        open(0);
+        assertEquals(800, replayed.size());
+    }
+
+    @Test
+    public void cutsATornRecordOff() throws IOException {
+        List<String> written = log(open(0), 0, 10);
+        Path log = folder.resolve("products0.wal");
+        long size = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(7).putInt(0, 40));
+        }
+        written.addAll(log(open(0), 10, 12));
+        assertTrue(Files.size(log) > size);
+        open(0);
+        assertEquals(written, replayed);
+    }
+
+    @Test
+    public void refusesADamagedEarlierGeneration() throws IOException {
+        WriteAheadLog wal = open(0);
+        log(wal, 0, 4);
+        wal.roll();
+        log(wal, 4, 6);
+        Path log = folder.resolve("products0.wal");
+        long size = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, -1), 0);
+        }
+        try {
+            open(0);
+            fail("The records after the damage would be lost");
+        } catch (IOException ex) {
+            assertEquals(size, Files.size(log));
+        }
+    }
+
+    @Test
+    public void refusesAMissingGeneration() throws IOException {
+        WriteAheadLog wal = open(0);
+        log(wal, 0, 2);
+        wal.roll();
+        log(wal, 2, 4);
+        wal.roll();
+        Files.delete(folder.resolve("products1.wal"));
+        try {
+            open(0);
+            fail("The changes of generation 1 are lost");
+        } catch (IOException ex) {
+            assertTrue(replayed.isEmpty());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToRollIntoAnExistingGeneration() throws IOException {
+        WriteAheadLog wal = open(0);
+        log(wal, 0, 2);
+        Files.writeString(folder.resolve("products1.wal"), "stale");
+        wal.roll();
+    }
+
+    @Test
+    public void discardsOlderGenerations() throws IOException {
+        WriteAheadLog wal = open(0);
+        wal.roll();
+        wal.roll();
+        wal.discard(2);
+        assertFalse(Files.exists(folder.resolve("products0.wal")));
+        assertFalse(Files.exists(folder.resolve("products1.wal")));
+        assertTrue(Files.exists(folder.resolve("products2.wal")));
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToCommitBeforeOpening() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(folder, FILE_NAME, 0);
+        wal.commit(wal.append(new Drink(1, "Tea", BigDecimal.ONE, Rating.NOT_RATED)));
+    }
+}
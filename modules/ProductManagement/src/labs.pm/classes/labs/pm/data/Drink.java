@@ -29,17 +29,20 @@ public final class Drink extends Product{
         super(id, name, price, rating);
     }
 
+    private Drink(Drink drink, Rating rating) {
+        super(drink, rating);
+    }
+
     @Override
-    public BigDecimal getDiscount() {
+    boolean isDiscounted() {
         LocalTime now = LocalTime.now();
-        return (now.isAfter(LocalTime.of(17,30)) 
-                && now.isBefore(LocalTime.of(18,30))) 
-                ? super.getDiscount() : BigDecimal.ZERO;
+        return now.isAfter(LocalTime.of(17,30)) 
+                && now.isBefore(LocalTime.of(18,30));
     }
 
     @Override
     public Product applyRating(Rating newRating) {
-        return new Drink(getId(),getName(),getPrice(),newRating);
+        return new Drink(this, newRating);
     }
     
 }
@@ -41,14 +41,19 @@ public final class Food extends Product{
         return bestBefore;
     }
 
+    private Food(Food food, Rating rating) {
+        super(food, rating);
+        this.bestBefore = food.bestBefore;
+    }
+
     @Override
-    public BigDecimal getDiscount() {
-        return (bestBefore.isEqual(LocalDate.now())) ? super.getDiscount() : BigDecimal.ZERO;
+    boolean isDiscounted() {
+        return bestBefore.isEqual(LocalDate.now());
     }
 
     @Override
     public Product applyRating(Rating newRating) {
-        return new Food(getId(),getName(),getPrice(),newRating,getBestBefore());
+        return new Food(this, newRating);
     }
 
 }
@@ -25,13 +25,20 @@ import static labs.pm.data.Rating.*;
 /**
  * Class that represent product
  *
+ * The price is kept as a long number of units at its own scale and the
+ * discount is worked out once, in minor units of money, when the product
+ * is created. {@link BigDecimal} values are only made when asked for.
+ * Prices whose minor units do not fit a long are rejected.
+ *
  * @author fabio
  */
 public abstract class Product implements Rateable<Product>, Serializable {
 
     private final int id;
     private final String name;
-    private final BigDecimal price;
+    private final long priceUnits;
+    private final int priceScale;
+    private final long discountMinor;
     private final Rating rating;
 
     {
@@ -46,7 +53,26 @@ public abstract class Product implements Rateable<Product>, Serializable {
 
         this.id = id;
         this.name = name;
-        this.price = price;
+        if (price.scale() < 0) {
+            price = price.setScale(0);
+        }
+        this.priceUnits = price.unscaledValue().longValueExact();
+        this.priceScale = price.scale();
+        // reject prices whose minor units do not fit up front
+        toMinor(priceUnits, priceScale);
+        this.discountMinor = discountMinor(priceUnits, priceScale);
+        this.rating = rating;
+    }
+
+    /**
+     * Copy of a product with another rating, sharing the money values
+     */
+    Product(Product product, Rating rating) {
+        this.id = product.id;
+        this.name = product.name;
+        this.priceUnits = product.priceUnits;
+        this.priceScale = product.priceScale;
+        this.discountMinor = product.discountMinor;
         this.rating = rating;
     }
 
@@ -57,6 +83,52 @@ public abstract class Product implements Rateable<Product>, Serializable {
 
     public static final BigDecimal discount = BigDecimal.valueOf(0.1);
 
+    /**
+     * Number of decimal places of the minor units of money
+     */
+    public static final int MONEY_SCALE = 2;
+
+    private static final long DISCOUNT_UNITS = discount.unscaledValue().longValueExact();
+    private static final int DISCOUNT_SCALE = discount.scale();
+
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L,
+        100_000_000L, 1_000_000_000L, 10_000_000_000L, 100_000_000_000L,
+        1_000_000_000_000L, 10_000_000_000_000L, 100_000_000_000_000L,
+        1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L,
+        1_000_000_000_000_000_000L
+    };
+
+    /**
+     * Round a number of units at a scale to minor units of money, half up
+     *
+     * @throws ArithmeticException when the result does not fit a long
+     */
+    static long toMinor(long units, int scale) {
+        if (scale <= MONEY_SCALE) {
+            if (MONEY_SCALE - scale >= POWERS_OF_TEN.length) {
+                throw new ArithmeticException("long overflow");
+            }
+            return Math.multiplyExact(units, POWERS_OF_TEN[MONEY_SCALE - scale]);
+        }
+        if (scale - MONEY_SCALE >= POWERS_OF_TEN.length) {
+            return BigDecimal.valueOf(units, scale).setScale(MONEY_SCALE, HALF_UP).unscaledValue().longValue();
+        }
+        long divisor = POWERS_OF_TEN[scale - MONEY_SCALE];
+        long quotient = units / divisor;
+        long remainder = Math.abs(units % divisor);
+        return (remainder >= divisor - remainder) ? quotient + Long.signum(units) : quotient;
+    }
+
+    private static long discountMinor(long units, int scale) {
+        try {
+            return toMinor(Math.multiplyExact(units, DISCOUNT_UNITS), scale + DISCOUNT_SCALE);
+        } catch (ArithmeticException ex) {
+            return BigDecimal.valueOf(units, scale).multiply(discount)
+                    .setScale(MONEY_SCALE, HALF_UP).unscaledValue().longValueExact();
+        }
+    }
+
     public int getId() {
         return id;
     }
@@ -66,11 +138,51 @@ public abstract class Product implements Rateable<Product>, Serializable {
     }
 
     public BigDecimal getPrice() {
-        return price;
+        return BigDecimal.valueOf(priceUnits, priceScale);
+    }
+
+    /**
+     * Unscaled value of the price, see {@link #getPriceScale()}
+     */
+    public long getPriceUnits() {
+        return priceUnits;
+    }
+
+    public int getPriceScale() {
+        return priceScale;
+    }
+
+    /**
+     * Price rounded half up to minor units of money
+     */
+    public long getPriceMinor() {
+        return toMinor(priceUnits, priceScale);
     }
 
     public BigDecimal getDiscount() {
-        return price.multiply(discount).setScale(2, HALF_UP);
+        return isDiscounted() ? BigDecimal.valueOf(discountMinor, MONEY_SCALE) : BigDecimal.ZERO;
+    }
+
+    /**
+     * Discount that applies now, in minor units of money
+     */
+    public long getDiscountMinor() {
+        return isDiscounted() ? discountMinor : 0;
+    }
+
+    /**
+     * Discount in minor units of money whenever it applies, which depends
+     * on the kind of product
+     */
+    public long getBaseDiscountMinor() {
+        return discountMinor;
+    }
+
+    /**
+     * Whether the discount applies now
+     */
+    boolean isDiscounted() {
+        return true;
     }
 
     @Override
@@ -80,7 +192,7 @@ public abstract class Product implements Rateable<Product>, Serializable {
 
     @Override
     public String toString() {
-        return id + ", " + name + ", " + price + ", "
+        return id + ", " + name + ", " + getPrice() + ", "
                 + getDiscount() + ", " + rating.getStars() + ", "
                 + getBestBefore();
     }
@@ -32,6 +32,6 @@ public interface Rateable<T> {
         return this.applyRating(Rateable.convert(stars));
     }
     public static Rating convert (int stars){
-        return (stars>=0 && stars <=5) ? Rating.values()[stars] : DEFAULT_RATING;
+        return (stars>=0 && stars <=5) ? Rating.of(stars) : DEFAULT_RATING;
     }
 }
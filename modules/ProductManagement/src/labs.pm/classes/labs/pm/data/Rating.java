@@ -28,11 +28,18 @@ public enum Rating {
     FOUR_STAR("\u2605\u2605\u2605\u2605\u2606"),
     FIVE_STAR("\u2605\u2605\u2605\u2605\u2605");
     
+    // values() copies the array on every call
+    private static final Rating[] VALUES = values();
+
     private String stars;
     private Rating (String stars){
         this.stars = stars;
     }
 
+    static Rating of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
     public String getStars() {
         return stars;
     }
@@ -18,8 +18,11 @@ package labs.pm.service;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Predicate;
 import labs.pm.data.Product;
 import labs.pm.data.Rating;
@@ -38,13 +41,129 @@ public interface ProductManager {
 
     Map<String, String> getDiscounts(String languageTag);
 
+    /**
+     * Get how many reviews of a product fall into each rating, without
+     * loading the reviews themselves
+     *
+     * @param id the product id
+     * @return the number of reviews per rating
+     * @throws ProductManagerException when the product does not exist
+     */
+    Map<Rating, Integer> getRatingDistribution(int id) throws ProductManagerException;
+
+    /**
+     * Get the version of the catalogue, which changes on every product
+     * creation or review, so callers can cheaply detect changes
+     *
+     * @return the current catalogue version
+     */
+    long getCatalogueVersion();
+
+    /**
+     * Get the runtime counters of the product manager, such as cache hits
+     * and misses, keyed by metric name
+     *
+     * @return the current value of each metric
+     */
+    Map<String, Number> getMetrics();
+
+    /**
+     * Get a memory report of the reviews held in the catalogue, keyed by
+     * metric name. Every review is visited, so unlike the metrics this is
+     * meant to be asked for now and then rather than polled.
+     *
+     * @return the bytes the reviews take and would take as review objects
+     */
+    Map<String, Number> getReviewMemory();
+
     void printProductReport(int id, String languageTag, String client);
 
+    /**
+     * Print the report of every product for every language and client in
+     * parallel, the reviews of each product being read once for all of
+     * its reports. All reports see the same catalogue version.
+     *
+     * @param ids the products
+     * @param languageTags the languages, more than one needs a report file
+     * name that tells them apart
+     * @param clients the clients
+     * @return one future per report, by product, then language, then
+     * client, completed exceptionally with a ProductManagerException when
+     * the product does not exist or an IOException when the report cannot
+     * be written
+     */
+    List<CompletableFuture<ReportTiming>> printProductReports(Collection<Integer> ids, Collection<String> languageTags, Collection<String> clients);
+
     //    public void printProducts(Comparator<Product> sorter) {
     //        this.printProducts((p) -> true, sorter);
     //    }
     void printProducts(Predicate<Product> filter, Comparator<Product> sorter, String languageTag);
 
+    /**
+     * Find a page of the products that pass a filter, in sorter order.
+     * Only the products up to the end of the page are kept while
+     * searching, so a small page of a large catalogue is cheap.
+     *
+     * @param filter the products to include
+     * @param sorter the order of the products, ties are broken by id
+     * @param offset how many matching products to skip
+     * @param limit the most products to return
+     * @param languageTag how the page is formatted
+     * @return the page, formatted only when printed
+     */
+    ProductPage findProducts(Predicate<Product> filter, Comparator<Product> sorter, int offset, int limit, String languageTag);
+
+    /**
+     * Find the products priced between two values, both included, using
+     * an index instead of scanning the catalogue
+     *
+     * @return the products in price order
+     */
+    List<Product> findProductsByPrice(BigDecimal from, BigDecimal to);
+
+    /**
+     * Find the products rated between two ratings, both included
+     *
+     * @return the products in rating order
+     */
+    List<Product> findProductsByRating(Rating from, Rating to);
+
+    /**
+     * Find the food best before a date between two dates, both included
+     *
+     * @return the products in best before order
+     */
+    List<Product> findProductsByBestBefore(LocalDate from, LocalDate to);
+
+    /**
+     * Find the food that expires from today up to a number of days from
+     * now
+     *
+     * @return the products in best before order
+     */
+    List<Product> findProductsExpiring(int days);
+
+    /**
+     * Find the products of a kind, such as food or drink
+     *
+     * @return the products in id order
+     */
+    List<Product> findProductsByType(Class<? extends Product> type);
+
+    /**
+     * Find the products whose reviews mention a word, counting only the
+     * reviews rated between two ratings
+     *
+     * @param word the word, or the start of the words when prefix is set
+     * @param prefix whether to match every word starting with the word
+     * @param from the lowest rating of the reviews to count
+     * @param to the highest rating of the reviews to count
+     * @param limit the most products to return
+     * @return the products with their number of matching reviews, most
+     * first
+     */
+    Map<Product, Integer> searchReviews(String word, boolean prefix, Rating from, Rating to, int limit);
+
     Product reviewProduct(int id, Rating rating, String comments);
     
 }
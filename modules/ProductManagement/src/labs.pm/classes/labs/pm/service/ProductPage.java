@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+
+/**
+ * One page of a product query. The products are formatted only when the
+ * page is printed or its lines are asked for.
+ *
+ * @author fabio
+ */
+public class ProductPage {
+
+    private final List<Product> products;
+    private final int offset;
+    private final int matches;
+    private final Function<Product, String> formatter;
+
+    public ProductPage(List<Product> products, int offset, int matches, Function<Product, String> formatter) {
+        this.products = List.copyOf(products);
+        this.offset = offset;
+        this.matches = matches;
+        this.formatter = formatter;
+    }
+
+    public List<Product> getProducts() {
+        return products;
+    }
+
+    /**
+     * Get the position of the first product of the page among all matches
+     *
+     * @return the number of matching products before this page
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Get how many products matched the query, on all pages
+     *
+     * @return the number of matching products
+     */
+    public int getMatches() {
+        return matches;
+    }
+
+    public boolean hasNext() {
+        return offset + products.size() < matches;
+    }
+
+    /**
+     * Get the formatted products, each formatted as the stream reaches it
+     *
+     * @return one line per product
+     */
+    public Stream<String> lines() {
+        return products.stream().map(formatter);
+    }
+
+    @Override
+    public String toString() {
+        return lines().collect(Collectors.joining("\n"));
+    }
+
+}
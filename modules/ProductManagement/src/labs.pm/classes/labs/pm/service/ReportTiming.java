@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import java.time.Duration;
+
+/**
+ * How long one report of a batch took to write.
+ *
+ * @author fabio
+ */
+public class ReportTiming {
+
+    private final int id;
+    private final String languageTag;
+    private final String client;
+    private final boolean written;
+    private final Duration waited;
+    private final Duration elapsed;
+
+    public ReportTiming(int id, String languageTag, String client, boolean written, Duration waited, Duration elapsed) {
+        this.id = id;
+        this.languageTag = languageTag;
+        this.client = client;
+        this.written = written;
+        this.waited = waited;
+        this.elapsed = elapsed;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getLanguageTag() {
+        return languageTag;
+    }
+
+    public String getClient() {
+        return client;
+    }
+
+    /**
+     * Check whether the report was written, rather than left as it was
+     * because nothing in it had changed since it was last written
+     */
+    public boolean isWritten() {
+        return written;
+    }
+
+    /**
+     * Get the time from the batch being submitted to the report being
+     * started, queued behind other reports and reading the reviews
+     */
+    public Duration getWaited() {
+        return waited;
+    }
+
+    /**
+     * Get the time spent formatting and writing the report, or finding it
+     * current
+     */
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "product " + id + " " + languageTag + " " + client + ": waited "
+                + waited.toMillis() + " ms, " + (written ? "written" : "current") + " in " + elapsed.toMillis() + " ms";
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 fabio
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import static java.math.RoundingMode.HALF_UP;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Rounding of prices and discounts to minor units of money
+ *
+ * @author fabio
+ */
+public class ProductTest {
+
+    @Test
+    public void keepsPricesAtTheMoneyScale() {
+        assertEquals(1234, Product.toMinor(1234, 2));
+    }
+
+    @Test
+    public void scalesUpCoarserPrices() {
+        assertEquals(500, Product.toMinor(5, 0));
+        assertEquals(5000, Product.toMinor(5, -1));
+        assertEquals(50, Product.toMinor(5, 1));
+    }
+
+    @Test
+    public void roundsFinerPricesHalfUp() {
+        assertEquals(101, Product.toMinor(1005, 3));
+        assertEquals(100, Product.toMinor(1004, 3));
+        assertEquals(-101, Product.toMinor(-1005, 3));
+        assertEquals(-100, Product.toMinor(-1004, 3));
+        assertEquals(0, Product.toMinor(4999, 6));
+        assertEquals(1, Product.toMinor(5000, 6));
+    }
+
+    @Test
+    public void roundsPricesFinerThanAnyPowerOfTenInALong() {
+        assertEquals(expected(Long.MAX_VALUE, 21), Product.toMinor(Long.MAX_VALUE, 21));
+        assertEquals(0, Product.toMinor(Long.MAX_VALUE, 30));
+    }
+
+    @Test
+    public void matchesBigDecimalRounding() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            long units = random.nextBoolean() ? random.nextLong() >> random.nextInt(64) : random.nextInt(1_000_000) - 500_000;
+            int scale = random.nextInt(24) - 3;
+            long expected;
+            try {
+                expected = expected(units, scale);
+            } catch (ArithmeticException ex) {
+                continue;
+            }
+            assertEquals(units + "E-" + scale, expected, Product.toMinor(units, scale));
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void rejectsMinorUnitsThatDoNotFit() {
+        Product.toMinor(Long.MAX_VALUE / 10, 0);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void rejectsScalesTooCoarseForALong() {
+        Product.toMinor(1, -20);
+    }
+
+    @Test
+    public void rejectsSuchPricesWhenCreated() {
+        try {
+            new Drink(1, "Huge", new BigDecimal("1E17"), Rating.NOT_RATED);
+            fail("A price of 1E17 has no minor units that fit a long");
+        } catch (ArithmeticException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void roundsTheDiscountHalfUp() {
+        assertEquals(1, new Drink(1, "Tea", new BigDecimal("0.05"), Rating.NOT_RATED).getBaseDiscountMinor());
+        assertEquals(0, new Drink(1, "Tea", new BigDecimal("0.04"), Rating.NOT_RATED).getBaseDiscountMinor());
+        assertEquals(200, new Drink(1, "Tea", new BigDecimal("19.99"), Rating.NOT_RATED).getBaseDiscountMinor());
+    }
+
+    @Test
+    public void keepsThePriceExactly() {
+        BigDecimal price = new BigDecimal("1.99000");
+        Product product = new Drink(1, "Tea", price, Rating.NOT_RATED);
+        assertEquals(price, product.getPrice());
+        assertEquals(199, product.getPriceMinor());
+    }
+
+    private static long expected(long units, int scale) {
+        return BigDecimal.valueOf(units, scale).setScale(Product.MONEY_SCALE, HALF_UP).unscaledValue().longValueExact();
+    }
+}